@@ -0,0 +1,208 @@
+package com.splunk.javaagent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.splunk.javaagent.trace.FilterListItem;
+
+/**
+ * Immutable snapshot of the runtime configuration that the probes read.
+ *
+ * The agent publishes a new snapshot through a single volatile reference
+ * whenever the properties file is reloaded or a JMX setter is invoked, so a
+ * probe only ever does one volatile read and always sees a consistent set of
+ * values.
+ *
+ */
+public final class AgentConfig {
+
+	private final String appName;
+	private final String appID;
+	private final boolean paused;
+
+	private final boolean traceClassLoaded;
+	private final boolean traceMethodEntered;
+	private final boolean traceMethodExited;
+	private final boolean traceErrors;
+	private final boolean traceJMX;
+	private final boolean traceHprof;
+	private final boolean traceLineNumbers;
+	private final boolean traceExceptionStacks;
+	// method events are only sent when (count & mask) == 0
+	private final int methodSampleMask;
+
+	private final List<FilterListItem> whiteList;
+	private final List<FilterListItem> blackList;
+
+	private final Map<String, String> userTags;
+	// userTags flattened once
+	private final String[] userTagKeys;
+	private final String[] userTagValues;
+
+	// appName , appID and the user tags rendered once
+	private final SplunkLogEvent.RenderedPairs tagPairs;
+	private final SplunkLogEvent.RenderedPairs userTagPairs;
+
+	private final List<Byte> hprofRecordFilter;
+	private final Map<Byte, List<Byte>> hprofHeapDumpSubRecordFilter;
+
+	AgentConfig(String appName, String appID, boolean paused,
+			boolean traceClassLoaded, boolean traceMethodEntered,
+			boolean traceMethodExited, boolean traceErrors, boolean traceJMX,
+			boolean traceHprof, boolean traceLineNumbers,
+			boolean traceExceptionStacks, int methodSampleMask,
+			List<FilterListItem> whiteList,
+			List<FilterListItem> blackList, Map<String, String> userTags,
+			List<Byte> hprofRecordFilter,
+			Map<Byte, List<Byte>> hprofHeapDumpSubRecordFilter) {
+
+		this.appName = appName == null ? "" : appName;
+		this.appID = appID == null ? "" : appID;
+		this.paused = paused;
+		this.traceClassLoaded = traceClassLoaded;
+		this.traceMethodEntered = traceMethodEntered;
+		this.traceMethodExited = traceMethodExited;
+		this.traceErrors = traceErrors;
+		this.traceJMX = traceJMX;
+		this.traceHprof = traceHprof;
+		this.traceLineNumbers = traceLineNumbers;
+		this.traceExceptionStacks = traceExceptionStacks;
+		this.methodSampleMask = methodSampleMask;
+		this.whiteList = copy(whiteList);
+		this.blackList = copy(blackList);
+
+		Map<String, String> tags = userTags == null ? new LinkedHashMap<String, String>()
+				: new LinkedHashMap<String, String>(userTags);
+		this.userTags = Collections.unmodifiableMap(tags);
+		this.userTagKeys = tags.keySet().toArray(new String[tags.size()]);
+		this.userTagValues = tags.values().toArray(new String[tags.size()]);
+
+		String[] tagKeys = new String[userTagKeys.length + 2];
+		String[] tagValues = new String[userTagKeys.length + 2];
+		tagKeys[0] = "appName";
+		tagValues[0] = this.appName;
+		tagKeys[1] = "appID";
+		tagValues[1] = this.appID;
+		System.arraycopy(userTagKeys, 0, tagKeys, 2, userTagKeys.length);
+		System.arraycopy(userTagValues, 0, tagValues, 2, userTagKeys.length);
+		this.tagPairs = new SplunkLogEvent.RenderedPairs(tagKeys, tagValues);
+		this.userTagPairs = new SplunkLogEvent.RenderedPairs(userTagKeys,
+				userTagValues);
+
+		this.hprofRecordFilter = hprofRecordFilter == null ? null
+				: Collections.unmodifiableList(new ArrayList<Byte>(
+						hprofRecordFilter));
+		if (hprofHeapDumpSubRecordFilter == null) {
+			this.hprofHeapDumpSubRecordFilter = null;
+		} else {
+			Map<Byte, List<Byte>> subRecords = new HashMap<Byte, List<Byte>>();
+			for (Map.Entry<Byte, List<Byte>> entry : hprofHeapDumpSubRecordFilter
+					.entrySet()) {
+				subRecords.put(entry.getKey(), Collections
+						.unmodifiableList(new ArrayList<Byte>(entry.getValue())));
+			}
+			this.hprofHeapDumpSubRecordFilter = Collections
+					.unmodifiableMap(subRecords);
+		}
+	}
+
+	private static <T> List<T> copy(List<T> list) {
+
+		if (list == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableList(new ArrayList<T>(list));
+	}
+
+	/**
+	 * Add the appName , appID and user defined tags to an event
+	 *
+	 * @param event
+	 */
+	public void addTags(SplunkLogEvent event) {
+
+		event.addRenderedPairs(tagPairs);
+	}
+
+	/**
+	 * Add just the user defined tags to an event
+	 *
+	 * @param event
+	 */
+	public void addUserTags(SplunkLogEvent event) {
+
+		event.addRenderedPairs(userTagPairs);
+	}
+
+	public String getAppName() {
+		return appName;
+	}
+
+	public String getAppID() {
+		return appID;
+	}
+
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public boolean isTraceClassLoaded() {
+		return traceClassLoaded;
+	}
+
+	public boolean isTraceMethodEntered() {
+		return traceMethodEntered;
+	}
+
+	public boolean isTraceMethodExited() {
+		return traceMethodExited;
+	}
+
+	public boolean isTraceErrors() {
+		return traceErrors;
+	}
+
+	public boolean isTraceJMX() {
+		return traceJMX;
+	}
+
+	public boolean isTraceHprof() {
+		return traceHprof;
+	}
+
+	public boolean isTraceLineNumbers() {
+		return traceLineNumbers;
+	}
+
+	public boolean isTraceExceptionStacks() {
+		return traceExceptionStacks;
+	}
+
+	public int getMethodSampleMask() {
+		return methodSampleMask;
+	}
+
+	public List<FilterListItem> getWhiteList() {
+		return whiteList;
+	}
+
+	public List<FilterListItem> getBlackList() {
+		return blackList;
+	}
+
+	public Map<String, String> getUserTags() {
+		return userTags;
+	}
+
+	public List<Byte> getHprofRecordFilter() {
+		return hprofRecordFilter;
+	}
+
+	public Map<Byte, List<Byte>> getHprofHeapDumpSubRecordFilter() {
+		return hprofHeapDumpSubRecordFilter;
+	}
+
+}
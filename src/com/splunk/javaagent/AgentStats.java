@@ -0,0 +1,179 @@
+package com.splunk.javaagent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The agent's own costs , class transformation and probe execution.
+ *
+ * Probe execution time is only recorded for the sampled probe invocations ,
+ * see {@link OverheadGovernor#PROBE_TIMING_MASK}, and is kept in a histogram
+ * with power of 2 buckets starting at {@link #FIRST_BUCKET_NANOS}.
+ *
+ */
+public class AgentStats {
+
+	public static final long FIRST_BUCKET_NANOS = 256;
+	// the last bucket holds everything slower than the previous one
+	public static final int BUCKETS = 14;
+
+	private final AtomicLong classesTransformed = new AtomicLong();
+	private final AtomicLong transformErrors = new AtomicLong();
+	private final AtomicLong transformNanos = new AtomicLong();
+	private final AtomicLong maxTransformNanos = new AtomicLong();
+	private volatile String slowestTransformedClass = "";
+	private final AtomicLong methodsInstrumented = new AtomicLong();
+	private final AtomicLong bytesAdded = new AtomicLong();
+
+	private final AtomicLongArray probeHistogram = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sampledProbes = new AtomicLong();
+	private final AtomicLong sampledProbeNanos = new AtomicLong();
+
+	/**
+	 * A class was run through the transformer
+	 *
+	 * @param className
+	 * @param nanos
+	 *            time spent transforming it
+	 * @param methods
+	 *            number of methods that were instrumented
+	 * @param bytes
+	 *            bytes added to the class file
+	 */
+	public void recordTransform(String className, long nanos, int methods,
+			long bytes) {
+
+		classesTransformed.incrementAndGet();
+		transformNanos.addAndGet(nanos);
+		methodsInstrumented.addAndGet(methods);
+		bytesAdded.addAndGet(bytes);
+
+		long max = maxTransformNanos.get();
+		while (nanos > max) {
+			if (maxTransformNanos.compareAndSet(max, nanos)) {
+				slowestTransformedClass = className;
+				break;
+			}
+			max = maxTransformNanos.get();
+		}
+	}
+
+	public void recordTransformError() {
+		transformErrors.incrementAndGet();
+	}
+
+	/**
+	 * A sampled probe invocation completed
+	 *
+	 * @param nanos
+	 */
+	public void recordProbeTime(long nanos) {
+
+		sampledProbes.incrementAndGet();
+		sampledProbeNanos.addAndGet(nanos);
+		probeHistogram.incrementAndGet(bucket(nanos));
+	}
+
+	private static int bucket(long nanos) {
+
+		int bucket = 0;
+		long bound = FIRST_BUCKET_NANOS;
+		while (nanos >= bound && bucket < BUCKETS - 1) {
+			bound <<= 1;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Upper bound of a histogram bucket , -1 for the last unbounded bucket
+	 *
+	 * @param bucket
+	 * @return
+	 */
+	public static long bucketUpperBoundNanos(int bucket) {
+
+		if (bucket >= BUCKETS - 1)
+			return -1;
+		return FIRST_BUCKET_NANOS << bucket;
+	}
+
+	/**
+	 * Add all the stats to an event
+	 *
+	 * @param event
+	 */
+	public void addPairs(SplunkLogEvent event) {
+
+		event.addPair("classesTransformed", classesTransformed.get());
+		event.addPair("transformErrors", transformErrors.get());
+		event.addPair("transformTimeMicros", transformNanos.get() / 1000);
+		event.addPair("maxTransformTimeMicros", maxTransformNanos.get() / 1000);
+		event.addPair("slowestTransformedClass", slowestTransformedClass);
+		event.addPair("methodsInstrumented", methodsInstrumented.get());
+		event.addPair("instrumentationBytesAdded", bytesAdded.get());
+		event.addPair("sampledProbes", sampledProbes.get());
+		event.addPair("avgProbeTimeNanos", getAverageProbeNanos());
+		for (int i = 0; i < BUCKETS; i++) {
+			long bound = bucketUpperBoundNanos(i);
+			event.addPair(bound < 0 ? "probe_lt_inf" : "probe_lt_" + bound
+					+ "ns", probeHistogram.get(i));
+		}
+	}
+
+	public long getClassesTransformed() {
+		return classesTransformed.get();
+	}
+
+	public long getTransformErrors() {
+		return transformErrors.get();
+	}
+
+	public long getTransformTimeMillis() {
+		return transformNanos.get() / 1000000;
+	}
+
+	public long getMaxTransformTimeMicros() {
+		return maxTransformNanos.get() / 1000;
+	}
+
+	public String getSlowestTransformedClass() {
+		return slowestTransformedClass;
+	}
+
+	public long getMethodsInstrumented() {
+		return methodsInstrumented.get();
+	}
+
+	public long getBytesAdded() {
+		return bytesAdded.get();
+	}
+
+	public long getAverageProbeNanos() {
+
+		long count = sampledProbes.get();
+		return count == 0 ? 0 : sampledProbeNanos.get() / count;
+	}
+
+	/**
+	 * Probe time histogram as "<256ns:10,<512ns:3,...,>=1048576ns:0"
+	 *
+	 * @return
+	 */
+	public String getProbeTimeHistogram() {
+
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < BUCKETS; i++) {
+			if (i > 0)
+				sb.append(",");
+			long bound = bucketUpperBoundNanos(i);
+			if (bound < 0)
+				sb.append(">=").append(bucketUpperBoundNanos(i - 1));
+			else
+				sb.append("<").append(bound);
+			sb.append("ns:").append(probeHistogram.get(i));
+		}
+		return sb.toString();
+	}
+
+}
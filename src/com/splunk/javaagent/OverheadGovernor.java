@@ -0,0 +1,257 @@
+package com.splunk.javaagent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Measures what the agent costs the JVM and keeps it within a CPU budget.
+ *
+ * The cost is the CPU time of the agent's own threads(any thread whose name
+ * starts with {@link #AGENT_THREAD_PREFIX}) plus the time application threads
+ * spend inside the probes , which is sampled. When the cost goes over the
+ * budget the governor steps up a degradation level , when it falls well below
+ * the budget it steps back down again.
+ *
+ * <pre>
+ * level 0    : everything enabled
+ * level 1    : no line numbers on method_entered
+ * level 2    : no stack traces on throwable_caught
+ * level 3..8 : method events sampled at 1/2 .. 1/64
+ * </pre>
+ *
+ */
+public class OverheadGovernor extends Thread {
+
+	private static Logger logger = Logger.getLogger(OverheadGovernor.class);
+
+	public static final String AGENT_THREAD_PREFIX = "splunkagent-";
+
+	public static final int LEVEL_NO_LINE_NUMBERS = 1;
+	public static final int LEVEL_NO_EXCEPTION_STACKS = 2;
+	public static final int MAX_LEVEL = 8;
+
+	// 1 in 64 probe invocations are timed
+	public static final int PROBE_TIMING_MASK = 63;
+
+	private final SplunkJavaAgent agent;
+	private final ThreadMXBean threadMXBean;
+	private final int processors;
+
+	private volatile boolean enabled = true;
+	private volatile double cpuBudget = 2.0;// percent
+	private volatile long intervalMillis = 10000;
+	private volatile boolean stopped = false;
+
+	private final AtomicLong sampledProbeNanos = new AtomicLong();
+
+	private volatile int level = 0;
+	private volatile double cpuPercent = 0;
+	private volatile double probeCpuPercent = 0;
+	private volatile double threadCpuPercent = 0;
+	private volatile long allocatedBytes = 0;
+
+	// last seen CPU time of each agent thread
+	private Map<Long, Long> threadCpuTimes = new HashMap<Long, Long>();
+
+	OverheadGovernor(SplunkJavaAgent agent) {
+
+		super(AGENT_THREAD_PREFIX + "governor");
+		setDaemon(true);
+		this.agent = agent;
+		this.threadMXBean = ManagementFactory.getThreadMXBean();
+		this.processors = Runtime.getRuntime().availableProcessors();
+		try {
+			if (threadMXBean.isThreadCpuTimeSupported()
+					&& !threadMXBean.isThreadCpuTimeEnabled())
+				threadMXBean.setThreadCpuTimeEnabled(true);
+		} catch (Exception e) {
+			logger.error("Unable to enable thread CPU time measurement : "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Called by a probe for a sampled invocation
+	 *
+	 * @param nanos
+	 *            time spent in the probe
+	 */
+	public void recordProbeTime(long nanos) {
+		sampledProbeNanos.addAndGet(nanos);
+	}
+
+	public void stopThread() {
+		this.stopped = true;
+	}
+
+	public void run() {
+
+		logger.info("Running overhead governor thread");
+
+		long lastTime = System.nanoTime();
+		measureAgentThreads();
+
+		while (!stopped) {
+			try {
+				Thread.sleep(intervalMillis);
+			} catch (InterruptedException e) {
+			}
+
+			try {
+				long now = System.nanoTime();
+				long elapsed = now - lastTime;
+				lastTime = now;
+				if (elapsed <= 0)
+					continue;
+
+				long threadNanos = measureAgentThreads();
+				long probeNanos = sampledProbeNanos.getAndSet(0)
+						* (PROBE_TIMING_MASK + 1);
+				double capacity = (double) elapsed * processors;
+
+				this.threadCpuPercent = threadNanos * 100.0 / capacity;
+				this.probeCpuPercent = probeNanos * 100.0 / capacity;
+				this.cpuPercent = threadCpuPercent + probeCpuPercent;
+
+				if (enabled)
+					adjust();
+			} catch (Throwable t) {
+				logger.error("Error running overhead governor thread : "
+						+ t.getMessage());
+			}
+		}
+	}
+
+	private void adjust() {
+
+		int newLevel = level;
+		if (cpuPercent > cpuBudget && level < MAX_LEVEL) {
+			newLevel = level + 1;
+		} else if (cpuPercent < cpuBudget / 2 && level > 0) {
+			newLevel = level - 1;
+		}
+		if (newLevel != level) {
+			logger.info("Agent overhead " + cpuPercent + "% , budget "
+					+ cpuBudget + "% , moving to level " + newLevel);
+			setLevel(newLevel);
+		}
+	}
+
+	private void setLevel(int newLevel) {
+
+		this.level = newLevel;
+		agent.applyOverheadLevel(newLevel);
+	}
+
+	/**
+	 * CPU time consumed by the agent threads since the last call , also
+	 * refreshes the allocated bytes total
+	 *
+	 * @return
+	 */
+	private long measureAgentThreads() {
+
+		long[] ids = threadMXBean.getAllThreadIds();
+		ThreadInfo[] infos = threadMXBean.getThreadInfo(ids, 0);
+		Map<Long, Long> cpuTimes = new HashMap<Long, Long>();
+		long delta = 0;
+		long allocated = 0;
+		com.sun.management.ThreadMXBean allocationBean = null;
+		if (threadMXBean instanceof com.sun.management.ThreadMXBean)
+			allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+
+		for (ThreadInfo info : infos) {
+			if (info == null
+					|| !info.getThreadName().startsWith(AGENT_THREAD_PREFIX))
+				continue;
+			long id = info.getThreadId();
+			long cpu = threadMXBean.isThreadCpuTimeSupported() ? threadMXBean
+					.getThreadCpuTime(id) : -1;
+			if (cpu >= 0) {
+				Long previous = threadCpuTimes.get(id);
+				delta += cpu - (previous == null ? 0 : previous);
+				cpuTimes.put(id, cpu);
+			}
+			if (allocationBean != null) {
+				try {
+					long bytes = allocationBean.getThreadAllocatedBytes(id);
+					if (bytes > 0)
+						allocated += bytes;
+				} catch (UnsupportedOperationException e) {
+					allocationBean = null;
+				}
+			}
+		}
+		this.threadCpuTimes = cpuTimes;
+		if (allocationBean != null)
+			this.allocatedBytes = allocated;
+		return delta;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public double getCpuPercent() {
+		return cpuPercent;
+	}
+
+	public double getProbeCpuPercent() {
+		return probeCpuPercent;
+	}
+
+	public double getThreadCpuPercent() {
+		return threadCpuPercent;
+	}
+
+	/**
+	 * Bytes allocated by the live agent threads over their lifetime
+	 *
+	 * @return
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * If false the overhead is still measured but never acted on
+	 *
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled && level != 0)
+			setLevel(0);
+	}
+
+	public double getCpuBudget() {
+		return cpuBudget;
+	}
+
+	/**
+	 * @param cpuBudget
+	 *            percentage of the JVM's total CPU capacity the agent may use
+	 */
+	public void setCpuBudget(double cpuBudget) {
+		this.cpuBudget = cpuBudget;
+	}
+
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public void setIntervalMillis(long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+	}
+
+}
@@ -14,6 +14,7 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
@@ -28,6 +29,9 @@ import com.splunk.javaagent.jmx.JMXMBeanPoller;
 import com.splunk.javaagent.jmx.mbean.JavaAgentMXBean;
 import com.splunk.javaagent.trace.FilterListItem;
 import com.splunk.javaagent.trace.SplunkClassFileTransformer;
+import com.splunk.javaagent.trace.ThreadIdentity;
+import com.splunk.javaagent.transport.CircuitBreaker;
+import com.splunk.javaagent.transport.SplunkInput;
 import com.splunk.javaagent.transport.SplunkTransport;
 
 public class SplunkJavaAgent implements JavaAgentMXBean {
@@ -45,6 +49,8 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
     private boolean traceErrors;
     private boolean traceJMX;
     private boolean traceHprof;
+    private boolean traceLineNumbers;
+    private boolean traceExceptionStacks;
     private Map<String, Integer> jmxConfigFiles;
     private int defaultJMXFrequency = 60;// seconds
     private List<Byte> hprofRecordFilter;
@@ -60,11 +66,30 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
     private static Logger logger = Logger.getLogger(SplunkJavaAgent.class);
 
     private boolean paused = false;
+
+    // the only state the probes read , swapped atomically on every change
+    private volatile AgentConfig config;
     private JMXThread jmxThread;
     private HprofThread hprofThread;
 
     private TransporterThread transporterThread;
 
+    // survives transport reloads , so shed counts aren't lost
+    private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    private OverheadGovernor overheadGovernor;
+    private int overheadLevel = 0;
+
+    private final AgentStats stats = new AgentStats();
+    // null unless dictionary encoding is enabled
+    private volatile StringDictionary dictionary;
+    private volatile StackDictionary stackDictionary;
+    private AgentStatsThread agentStatsThread;
+    private int agentStatsFrequency = 60;// seconds
+
+    // deliberately unsynchronized , this only drives probe timing
+    private static int probeTimingCount;
+
     public SplunkJavaAgent() {
 
     }
@@ -82,6 +107,9 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
             return;
         if (!agent.initJMX())
             return;
+        agent.initOverheadGovernor();
+        agent.initAgentStats();
+        agent.publishConfig();
 
         while (true) {
             try {
@@ -116,6 +144,9 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
                 return;
             if (!agent.initHprof())
                 return;
+            agent.initOverheadGovernor();
+            agent.initAgentStats();
+            agent.publishConfig();
 
             MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
             ObjectName objName = new ObjectName("splunkjavaagent:type=agent");
@@ -124,8 +155,12 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 public void run() {
                     try {
-                        if (agent.transport != null)
+                        if (agent.transport != null) {
                             agent.transport.stop();
+                            // keep what couldn't be sent for the next run
+                            if (agent.transport instanceof SplunkInput)
+                                ((SplunkInput) agent.transport).persistQueue();
+                        }
                     } catch (Exception e) {
                         logger.error("Error running Splunk Java Agent shutdown hook : "
                                 + e.getMessage());
@@ -140,6 +175,85 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     }
 
+    /**
+     * Gather the current settings into a new immutable snapshot and publish it
+     * to the probes
+     */
+    private synchronized void publishConfig() {
+
+        int methodSampleMask = 0;
+        if (overheadLevel > OverheadGovernor.LEVEL_NO_EXCEPTION_STACKS)
+            methodSampleMask = (1 << (overheadLevel
+                    - OverheadGovernor.LEVEL_NO_EXCEPTION_STACKS)) - 1;
+
+        this.config = new AgentConfig(appName, appID, paused,
+                traceClassLoaded, traceMethodEntered, traceMethodExited,
+                traceErrors, traceJMX, traceHprof, traceLineNumbers
+                && overheadLevel < OverheadGovernor.LEVEL_NO_LINE_NUMBERS,
+                traceExceptionStacks
+                        && overheadLevel < OverheadGovernor.LEVEL_NO_EXCEPTION_STACKS,
+                methodSampleMask, whiteList, blackList, userTags,
+                hprofRecordFilter, hprofHeapDumpSubRecordFilter);
+    }
+
+    /**
+     * Called by the overhead governor when the agent's cost moves it to a
+     * different degradation level
+     * 
+     * @param level
+     */
+    synchronized void applyOverheadLevel(int level) {
+
+        this.overheadLevel = level;
+        publishConfig();
+    }
+
+    private void initOverheadGovernor() {
+
+        logger.info("Initialising overhead governor");
+
+        if (this.overheadGovernor == null) {
+            this.overheadGovernor = new OverheadGovernor(this);
+            this.overheadGovernor.start();
+        }
+        this.overheadGovernor.setEnabled(Boolean.parseBoolean(props
+                .getProperty("agent.overhead.enabled", "true")));
+        try {
+            this.overheadGovernor.setCpuBudget(Double.parseDouble(props
+                    .getProperty("agent.overhead.cpuBudget", "2")));
+        } catch (NumberFormatException e) {
+
+        }
+        try {
+            this.overheadGovernor.setIntervalMillis(Long.parseLong(props
+                    .getProperty("agent.overhead.interval", "10000")));
+        } catch (NumberFormatException e) {
+
+        }
+
+    }
+
+    private void initAgentStats() {
+
+        logger.info("Initialising agent stats");
+
+        try {
+            this.agentStatsFrequency = Integer.parseInt(props.getProperty(
+                    "agent.stats.frequency", "60"));
+        } catch (NumberFormatException e) {
+
+        }
+        if (this.agentStatsThread != null) {
+            this.agentStatsThread.stopThread();
+            this.agentStatsThread = null;
+        }
+        if (this.agentStatsFrequency > 0) {
+            this.agentStatsThread = new AgentStatsThread(
+                    this.agentStatsFrequency);
+            this.agentStatsThread.start();
+        }
+    }
+
     private boolean initTracing() {
 
         logger.info("Initialising tracing");
@@ -152,10 +266,86 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
                 "trace.methodExited", "true"));
         this.traceErrors = Boolean.parseBoolean(agent.props.getProperty(
                 "trace.errors", "true"));
+        this.traceLineNumbers = Boolean.parseBoolean(agent.props.getProperty(
+                "trace.lineNumbers", "true"));
+        this.traceExceptionStacks = Boolean.parseBoolean(agent.props
+                .getProperty("trace.exceptionStacks", "true"));
+
+        ThreadIdentity.setVirtualThreadAggregation(agent.props.getProperty(
+                "trace.virtualThreads.aggregation", "thread"));
+        try {
+            ThreadIdentity.setMaxInternedNames(Integer.parseInt(agent.props
+                    .getProperty("trace.threadNameCacheSize", "1024")));
+        } catch (NumberFormatException e) {
+
+        }
+
+        initDictionary();
+        initStackDictionary();
 
         return true;
     }
 
+    private void initDictionary() {
+
+        if (!Boolean.parseBoolean(agent.props.getProperty(
+                "trace.dictionary.enabled", "false"))) {
+            this.dictionary = null;
+            return;
+        }
+        int maxSize = 10000;
+        int reannounceSeconds = 300;
+        try {
+            maxSize = Integer.parseInt(agent.props.getProperty(
+                    "trace.dictionary.maxSize", "10000"));
+        } catch (NumberFormatException e) {
+
+        }
+        try {
+            reannounceSeconds = Integer.parseInt(agent.props.getProperty(
+                    "trace.dictionary.reannounceInterval", "300"));
+        } catch (NumberFormatException e) {
+
+        }
+        String[] keys = StringDictionary.DEFAULT_KEYS;
+        String keysProperty = agent.props.getProperty("trace.dictionary.keys");
+        if (keysProperty != null && keysProperty.trim().length() > 0) {
+            keys = keysProperty.trim().split(",");
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = keys[i].trim();
+            }
+        }
+        StringDictionary previous = this.dictionary;
+        this.dictionary = new StringDictionary(keys, maxSize,
+                reannounceSeconds, previous == null ? 1 : previous.getNextID());
+    }
+
+    private void initStackDictionary() {
+
+        if (!Boolean.parseBoolean(agent.props.getProperty(
+                "trace.stackDictionary.enabled", "false"))) {
+            this.stackDictionary = null;
+            return;
+        }
+        int maxSize = 1000;
+        int reannounceSeconds = 300;
+        try {
+            maxSize = Integer.parseInt(agent.props.getProperty(
+                    "trace.stackDictionary.maxSize", "1000"));
+        } catch (NumberFormatException e) {
+
+        }
+        try {
+            reannounceSeconds = Integer.parseInt(agent.props.getProperty(
+                    "trace.stackDictionary.reannounceInterval", "300"));
+        } catch (NumberFormatException e) {
+
+        }
+        StackDictionary previous = this.stackDictionary;
+        this.stackDictionary = new StackDictionary(maxSize, reannounceSeconds,
+                previous == null ? 1 : previous.getNextID());
+    }
+
     private void restartHProf() {
 
         if (this.traceHprof) {
@@ -177,6 +367,8 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
         this.traceHprof = Boolean.parseBoolean(agent.props.getProperty(
                 "trace.hprof", "false"));
+        this.hprofRecordFilter = null;
+        this.hprofHeapDumpSubRecordFilter = null;
         if (this.traceHprof) {
             this.hprofFile = props.getProperty("trace.hprof.tempfile", "");
             try {
@@ -289,7 +481,7 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
         this.loggingLevel = props.getProperty("agent.loggingLevel", "ERROR");
         LogManager.getRootLogger().setLevel(Level.toLevel(loggingLevel));
 
-        setUserEventTags(tags);
+        addUserEventTags(tags);
 
         return true;
     }
@@ -300,6 +492,7 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
         boolean stopped = false;
 
         TransporterThread(Thread parent) {
+            super(OverheadGovernor.AGENT_THREAD_PREFIX + "transporter");
             this.parent = parent;
         }
 
@@ -314,13 +507,25 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
             while (parent.isAlive() && !stopped) {
 
                 try {
+                    agent.circuitBreaker.recordQueueFill(
+                            agent.eventQueue.size(), agent.queueSize);
                     while (!agent.eventQueue.isEmpty()) {
                         SplunkLogEvent event = agent.eventQueue.poll();
 
                         if (event != null) {
+                            StringDictionary dictionary = agent.dictionary;
+                            if (dictionary != null)
+                                dictionary.encode(event, agent.config,
+                                        agent.transport);
+                            StackDictionary stackDictionary = agent.stackDictionary;
+                            if (stackDictionary != null)
+                                stackDictionary.encode(event, agent.config,
+                                        agent.transport);
                             agent.transport.send(event);
                         }
                     }
+                    if (!agent.circuitBreaker.isOpen())
+                        sendShedCounts();
                 } catch (Throwable t) {
                     logger.error("Error running transporter thread : "
                             + t.getMessage());
@@ -332,6 +537,88 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
             }
         }
 
+        /**
+         * Once the circuit breaker has closed , report what the probes
+         * didn't send while it was open
+         */
+        private void sendShedCounts() {
+
+            long[] counts = agent.circuitBreaker.drainShedCounts();
+            SplunkLogEvent event = null;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    if (event == null) {
+                        event = new SplunkLogEvent("circuit_breaker",
+                                "splunkagent", true, false);
+                        agent.config.addTags(event);
+                    }
+                    event.addPair(CircuitBreaker.getEventTypeName(i)
+                            + "_shed", counts[i]);
+                }
+            }
+            if (event != null)
+                agent.transport.send(event);
+        }
+
+    }
+
+    /**
+     * Periodically reports what the agent is costing , as agent_stats events
+     */
+    class AgentStatsThread extends Thread {
+
+        int frequencySeconds;
+        boolean stopped = false;
+
+        AgentStatsThread(int frequencySeconds) {
+            super(OverheadGovernor.AGENT_THREAD_PREFIX + "stats");
+            setDaemon(true);
+            this.frequencySeconds = frequencySeconds;
+        }
+
+        public void stopThread() {
+            this.stopped = true;
+        }
+
+        public void run() {
+
+            logger.info("Running agent stats thread");
+
+            while (!stopped) {
+                try {
+                    Thread.sleep(frequencySeconds * 1000);
+                } catch (InterruptedException e) {
+                }
+                if (stopped)
+                    break;
+
+                try {
+                    AgentConfig config = agent.config;
+                    if (config.isPaused())
+                        continue;
+                    SplunkLogEvent event = new SplunkLogEvent("agent_stats",
+                            "splunkagent", true, false);
+                    config.addTags(event);
+                    agent.stats.addPairs(event);
+                    if (agent.overheadGovernor != null) {
+                        event.addPair("overheadCpuPercent",
+                                agent.overheadGovernor.getCpuPercent());
+                        event.addPair("overheadProbeCpuPercent",
+                                agent.overheadGovernor.getProbeCpuPercent());
+                        event.addPair("overheadAllocatedBytes",
+                                agent.overheadGovernor.getAllocatedBytes());
+                        event.addPair("overheadLevel", agent.overheadLevel);
+                    }
+                    event.addPair("circuitBreakerState",
+                            agent.circuitBreaker.getState());
+                    enqueue(event);
+                } catch (Throwable t) {
+                    logger.error("Error running agent stats thread : "
+                            + t.getMessage());
+                }
+            }
+        }
+
     }
 
     class PropsFileCheckerThread extends Thread {
@@ -340,6 +627,7 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
         long lastModified;
 
         PropsFileCheckerThread(File file) {
+            super(OverheadGovernor.AGENT_THREAD_PREFIX + "propsfilechecker");
             this.file = file;
             this.lastModified = file.lastModified();
 
@@ -375,24 +663,43 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
                                 in.close();
                         }
 
-                        agent.initCommonProperties();
+                        // hold the agent lock so JMX setters can't publish a
+                        // half reloaded config
+                        synchronized (agent) {
+                            agent.initCommonProperties();
 
-                        agent.transporterThread.stopThread();
-                        MBeanServer mbs = ManagementFactory
-                                .getPlatformMBeanServer();
-                        ObjectName objName = new ObjectName(
-                                "splunkjavaagent:type=transport,impl="
-                                        + transportImpl);
-                        mbs.unregisterMBean(objName);
-                        agent.initTransport();
+                            agent.transporterThread.stopThread();
+                            MBeanServer mbs = ManagementFactory
+                                    .getPlatformMBeanServer();
+                            ObjectName objName = new ObjectName(
+                                    "splunkjavaagent:type=transport,impl="
+                                            + transportImpl);
+                            mbs.unregisterMBean(objName);
+                            // the old transport lets go of its threads and
+                            // files , the new one takes over its queue
+                            SplunkTransport previous = agent.transport;
+                            if (previous instanceof SplunkInput)
+                                ((SplunkInput) previous).close();
+                            agent.initTransport();
+                            if (previous instanceof SplunkInput
+                                    && agent.transport instanceof SplunkInput)
+                                ((SplunkInput) agent.transport)
+                                        .takeQueue((SplunkInput) previous);
 
-                        agent.initTracing();
+                            agent.initTracing();
 
-                        agent.initFilters();
+                            agent.initFilters();
 
-                        agent.initJMX();
+                            agent.initJMX();
 
-                        agent.initHprof();
+                            agent.initHprof();
+
+                            agent.initOverheadGovernor();
+
+                            agent.initAgentStats();
+
+                            agent.publishConfig();
+                        }
 
                     }
 
@@ -419,6 +726,7 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
         boolean stopped = false;
 
         JMXThread(Thread parent, int frequencySeconds, String configFile) {
+            super(OverheadGovernor.AGENT_THREAD_PREFIX + "jmx");
             this.parent = parent;
             this.configFile = configFile;
             this.frequencySeconds = frequencySeconds;
@@ -473,6 +781,7 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
         HprofThread(Thread parent, int frequencySeconds, String hprofFile)
                 throws Exception {
+            super(OverheadGovernor.AGENT_THREAD_PREFIX + "hprof");
             this.parent = parent;
             this.hprofFile = hprofFile;
             this.frequencySeconds = frequencySeconds;
@@ -575,9 +884,10 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     public static boolean isWhiteListed(String className) {
 
-        if (agent.whiteList.isEmpty())
+        List<FilterListItem> whiteList = agent.config.getWhiteList();
+        if (whiteList.isEmpty())
             return true;
-        for (FilterListItem item : agent.whiteList) {
+        for (FilterListItem item : whiteList) {
             if (className.startsWith(item.getClassName()))
                 return true;
         }
@@ -586,9 +896,10 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     public static boolean isWhiteListed(String className, String methodName) {
 
-        if (agent.whiteList.isEmpty())
+        List<FilterListItem> whiteList = agent.config.getWhiteList();
+        if (whiteList.isEmpty())
             return true;
-        for (FilterListItem item : agent.whiteList) {
+        for (FilterListItem item : whiteList) {
             if (className.startsWith(item.getClassName())
                     && methodName.equals(item.getMethodName()))
                 return true;
@@ -603,9 +914,10 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     public static boolean isBlackListed(String className) {
 
-        if (agent.blackList.isEmpty())
+        List<FilterListItem> blackList = agent.config.getBlackList();
+        if (blackList.isEmpty())
             return false;
-        for (FilterListItem item : agent.blackList) {
+        for (FilterListItem item : blackList) {
             if (className.startsWith(item.getClassName()))
                 return true;
         }
@@ -614,9 +926,10 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     public static boolean isBlackListed(String className, String methodName) {
 
-        if (agent.blackList.isEmpty())
+        List<FilterListItem> blackList = agent.config.getBlackList();
+        if (blackList.isEmpty())
             return true;
-        for (FilterListItem item : agent.blackList) {
+        for (FilterListItem item : blackList) {
             if (className.startsWith(item.getClassName())
                     && methodName.equals(item.getMethodName()))
                 return true;
@@ -660,6 +973,12 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
         }
 
+        initCircuitBreaker();
+        if (this.transport instanceof SplunkInput) {
+            ((SplunkInput) this.transport)
+                    .setCircuitBreaker(this.circuitBreaker);
+        }
+
         try {
 
             this.eventQueue = new ArrayBlockingQueue<SplunkLogEvent>(queueSize);
@@ -687,6 +1006,67 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     }
 
+    private void initCircuitBreaker() {
+
+        this.circuitBreaker.setEnabled(Boolean.parseBoolean(props.getProperty(
+                "agent.circuitBreaker.enabled", "true")));
+        this.circuitBreaker.setCountWhenOpen(!"drop".equalsIgnoreCase(props
+                .getProperty("agent.circuitBreaker.mode", "count")));
+        try {
+            this.circuitBreaker.setFailureThreshold(Integer.parseInt(props
+                    .getProperty("agent.circuitBreaker.failureThreshold", "5")));
+        } catch (NumberFormatException e) {
+
+        }
+        try {
+            this.circuitBreaker.setLatencyThreshold(Long.parseLong(props
+                    .getProperty("agent.circuitBreaker.latencyThreshold",
+                            "5000")));
+        } catch (NumberFormatException e) {
+
+        }
+        try {
+            this.circuitBreaker.setQueueFillThreshold(Integer.parseInt(props
+                    .getProperty("agent.circuitBreaker.queueFillThreshold",
+                            "90")));
+        } catch (NumberFormatException e) {
+
+        }
+        try {
+            this.circuitBreaker.setOpenDuration(Long.parseLong(props
+                    .getProperty("agent.circuitBreaker.openDuration", "30000")));
+        } catch (NumberFormatException e) {
+
+        }
+        try {
+            this.circuitBreaker.setProbeEvents(Integer.parseInt(props
+                    .getProperty("agent.circuitBreaker.probeEvents", "100")));
+        } catch (NumberFormatException e) {
+
+        }
+    }
+
+    /**
+     * Queue an event for the transporter thread. With the circuit breaker
+     * enabled a full queue opens the breaker instead of blocking the
+     * application thread.
+     * 
+     * @param event
+     */
+    private static void enqueue(SplunkLogEvent event) {
+
+        if (agent.circuitBreaker.isEnabled()) {
+            if (!agent.eventQueue.offer(event))
+                agent.circuitBreaker.recordQueueFull();
+        } else {
+            try {
+                agent.eventQueue.put(event);
+            } catch (InterruptedException e) {
+
+            }
+        }
+    }
+
     private boolean loadProperties(String propsFile) {
 
         logger.info("Loading properties file");
@@ -721,108 +1101,145 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     public static void classLoaded(String className) {
 
-        if (agent.traceClassLoaded && !agent.paused) {
+        AgentConfig config = agent.config;
+        if (config.isTraceClassLoaded() && !config.isPaused()
+                && agent.circuitBreaker.allowEvent(CircuitBreaker.CLASS_LOADED)) {
             SplunkLogEvent event = new SplunkLogEvent("class_loaded",
                     "splunkagent", true, false);
-            event.addPair("appName", agent.appName);
-            event.addPair("appID", agent.appID);
+            config.addTags(event);
             event.addPair("className", className);
-            addUserTags(event);
-            agent.transport.send(event);
+            enqueue(event);
         }
     }
 
-    private static void addUserTags(SplunkLogEvent event) {
+    private static void addThreadPairs(SplunkLogEvent event) {
 
-        if (!agent.userTags.isEmpty()) {
+        ThreadIdentity thread = ThreadIdentity.current();
+        // aggregated virtual threads have no single thread ID
+        if (thread.getId() >= 0)
+            event.addPair("threadID", thread.getId());
+        event.addPair("threadName", thread.getName());
+        if (thread.isVirtual())
+            event.addPair("threadVirtual", true);
 
-            Set<String> keys = agent.userTags.keySet();
-            for (String key : keys) {
-                event.addPair(key, agent.userTags.get(key));
-            }
+    }
+
+    /**
+     * True if the events of this method call should be sent , the overhead
+     * governor may have reduced method calls to a 1 in (mask + 1) sample.
+     * Decided once per call , on entry , without any state shared between
+     * threads.
+     */
+    private static boolean sampleMethodCall(AgentConfig config) {
+
+        int mask = config.getMethodSampleMask();
+        return mask == 0
+                || (ThreadLocalRandom.current().nextInt() & mask) == 0;
+    }
+
+    private static long startProbeTiming() {
+
+        if ((++probeTimingCount & OverheadGovernor.PROBE_TIMING_MASK) == 0)
+            return System.nanoTime();
+        return 0;
+    }
+
+    private static void endProbeTiming(long probeStart) {
+
+        if (probeStart != 0) {
+            long nanos = System.nanoTime() - probeStart;
+            agent.stats.recordProbeTime(nanos);
+            if (agent.overheadGovernor != null)
+                agent.overheadGovernor.recordProbeTime(nanos);
         }
+    }
+
+    public static void classTransformed(String className, long nanos,
+                                        int methodsInstrumented, long bytesAdded) {
 
+        agent.stats.recordTransform(className, nanos, methodsInstrumented,
+                bytesAdded);
     }
 
-    public static void methodEntered(String className, String methodName,
-                                     String desc) {
+    public static void classTransformFailed() {
 
-        if (agent.traceMethodEntered && !agent.paused) {
+        agent.stats.recordTransformError();
+    }
+
+    /**
+     * @return whether the call is sampled , passed back to methodExited
+     */
+    public static boolean methodEntered(String className, String methodName,
+                                        String desc) {
+
+        AgentConfig config = agent.config;
+        boolean sampled = sampleMethodCall(config);
+        if (config.isTraceMethodEntered() && !config.isPaused() && sampled
+                && agent.circuitBreaker.allowEvent(CircuitBreaker.METHOD_ENTERED)) {
+            long probeStart = startProbeTiming();
             SplunkLogEvent event = new SplunkLogEvent("method_entered",
                     "splunkagent", true, false);
-            event.addPair("appName", agent.appName);
-            event.addPair("appID", agent.appID);
+            config.addTags(event);
             event.addPair("className", className);
             event.addPair("methodName", methodName);
             event.addPair("methodDesc", desc);
-            event.addPair("threadID", Thread.currentThread().getId());
-            event.addPair("threadName", Thread.currentThread().getName());
+            addThreadPairs(event);
 
-            try {
-                StackTraceElement ste = Thread.currentThread().getStackTrace()[3];
-                if (ste != null)
-                    event.addPair("lineNumber", ste.getLineNumber());
-                event.addPair("sourceFileName", ste.getFileName());
-            } catch (Exception e1) {
+            if (config.isTraceLineNumbers()) {
+                try {
+                    StackTraceElement ste = Thread.currentThread()
+                            .getStackTrace()[3];
+                    if (ste != null)
+                        event.addPair("lineNumber", ste.getLineNumber());
+                    event.addPair("sourceFileName", ste.getFileName());
+                } catch (Exception e1) {
+                }
             }
 
-            addUserTags(event);
-            try {
-                agent.eventQueue.put(event);
-                // agent.eventQueue.offer(event,1000,TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-
-            }
+            enqueue(event);
+            endProbeTiming(probeStart);
         }
+        return sampled;
     }
 
     public static void methodExited(String className, String methodName,
-                                    String desc) {
+                                    String desc, boolean sampled) {
 
-        if (agent.traceMethodExited && !agent.paused) {
+        AgentConfig config = agent.config;
+        if (config.isTraceMethodExited() && !config.isPaused() && sampled
+                && agent.circuitBreaker.allowEvent(CircuitBreaker.METHOD_EXITED)) {
+            long probeStart = startProbeTiming();
 
             SplunkLogEvent event = new SplunkLogEvent("method_exited",
                     "splunkagent", true, false);
-            event.addPair("appName", agent.appName);
-            event.addPair("appID", agent.appID);
+            config.addTags(event);
             event.addPair("className", className);
             event.addPair("methodName", methodName);
             event.addPair("methodDesc", desc);
-            event.addPair("threadID", Thread.currentThread().getId());
-            event.addPair("threadName", Thread.currentThread().getName());
-            addUserTags(event);
-            try {
-                agent.eventQueue.put(event);
-                // agent.eventQueue.offer(event,1000,TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-
-            }
+            addThreadPairs(event);
+            enqueue(event);
+            endProbeTiming(probeStart);
         }
     }
 
     public static void throwableCaught(String className, String methodName,
                                        String desc, Throwable t) {
 
-        if (agent.traceErrors && !agent.paused) {
+        AgentConfig config = agent.config;
+        if (config.isTraceErrors() && !config.isPaused()
+                && agent.circuitBreaker.allowEvent(CircuitBreaker.THROWABLE_CAUGHT)) {
+            long probeStart = startProbeTiming();
 
             SplunkLogEvent event = new SplunkLogEvent("throwable_caught",
                     "splunkagent", true, false);
-            event.addPair("appName", agent.appName);
-            event.addPair("appID", agent.appID);
+            config.addTags(event);
             event.addPair("className", className);
             event.addPair("methodName", methodName);
             event.addPair("methodDesc", desc);
-            event.addThrowable(t);
-            event.addPair("methodName", methodName);
-            event.addPair("threadID", Thread.currentThread().getId());
-            event.addPair("threadName", Thread.currentThread().getName());
-            addUserTags(event);
-            try {
-                agent.eventQueue.put(event);
-                // agent.eventQueue.offer(event,1000,TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-
-            }
+            event.addThrowable(t, config.isTraceExceptionStacks() ? -1 : 0);
+            addThreadPairs(event);
+            enqueue(event);
+            endProbeTiming(probeStart);
 
         }
     }
@@ -830,18 +1247,12 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
     public static void hprofRecordEvent(byte recordType, byte subRecordType,
                                         SplunkLogEvent event) {
 
-        if (agent.traceJMX && !agent.paused) {
-            if (traceHprofRecordType(recordType, subRecordType)) {
-                event.addPair("appName", agent.appName);
-                event.addPair("appID", agent.appID);
-                addUserTags(event);
-                try {
-
-                    agent.eventQueue.put(event);
-
-                } catch (InterruptedException e) {
-
-                }
+        AgentConfig config = agent.config;
+        if (config.isTraceJMX() && !config.isPaused()) {
+            if (traceHprofRecordType(config, recordType, subRecordType)
+                    && agent.circuitBreaker.allowEvent(CircuitBreaker.HPROF)) {
+                config.addTags(event);
+                enqueue(event);
 
             }
         }
@@ -849,31 +1260,25 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     public static void jmxEvent(SplunkLogEvent event) {
 
-        if (agent.traceJMX && !agent.paused) {
-            event.addPair("appName", agent.appName);
-            event.addPair("appID", agent.appID);
-            addUserTags(event);
-            try {
-
-                agent.eventQueue.put(event);
-
-            } catch (InterruptedException e) {
-
-            }
+        AgentConfig config = agent.config;
+        if (config.isTraceJMX() && !config.isPaused()
+                && agent.circuitBreaker.allowEvent(CircuitBreaker.JMX)) {
+            config.addTags(event);
+            enqueue(event);
         }
 
     }
 
-    private static boolean traceHprofRecordType(byte recordType,
-                                                byte subRecordType) {
-        if (agent.hprofRecordFilter == null
-                || agent.hprofRecordFilter.isEmpty())
+    private static boolean traceHprofRecordType(AgentConfig config,
+                                                byte recordType, byte subRecordType) {
+        List<Byte> recordFilter = config.getHprofRecordFilter();
+        if (recordFilter == null || recordFilter.isEmpty())
             return true;
         else {
-            for (byte b : agent.hprofRecordFilter) {
+            for (byte b : recordFilter) {
                 if (b == recordType) {
-                    List<Byte> subrecords = agent.hprofHeapDumpSubRecordFilter
-                            .get(recordType);
+                    List<Byte> subrecords = config
+                            .getHprofHeapDumpSubRecordFilter().get(recordType);
                     if (subrecords == null || subrecords.isEmpty()) {
                         return true;
                     } else {
@@ -979,19 +1384,112 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
     }
 
     @Override
-    public void setAppName(String val) {
+    public String getCircuitBreakerState() {
+        return this.circuitBreaker.getState();
+    }
+
+    @Override
+    public long getCircuitBreakerShedEvents() {
+        return this.circuitBreaker.getShedCount();
+    }
+
+    @Override
+    public double getOverheadCpuPercent() {
+        return this.overheadGovernor == null ? 0 : this.overheadGovernor
+                .getCpuPercent();
+    }
+
+    @Override
+    public double getOverheadProbeCpuPercent() {
+        return this.overheadGovernor == null ? 0 : this.overheadGovernor
+                .getProbeCpuPercent();
+    }
+
+    @Override
+    public long getOverheadAllocatedBytes() {
+        return this.overheadGovernor == null ? 0 : this.overheadGovernor
+                .getAllocatedBytes();
+    }
+
+    @Override
+    public int getOverheadLevel() {
+        return this.overheadLevel;
+    }
+
+    @Override
+    public long getTransformedClasses() {
+        return this.stats.getClassesTransformed();
+    }
+
+    @Override
+    public long getTransformErrors() {
+        return this.stats.getTransformErrors();
+    }
+
+    @Override
+    public long getTransformTimeMillis() {
+        return this.stats.getTransformTimeMillis();
+    }
+
+    @Override
+    public long getMaxTransformTimeMicros() {
+        return this.stats.getMaxTransformTimeMicros();
+    }
+
+    @Override
+    public String getSlowestTransformedClass() {
+        return this.stats.getSlowestTransformedClass();
+    }
+
+    @Override
+    public long getInstrumentedMethods() {
+        return this.stats.getMethodsInstrumented();
+    }
+
+    @Override
+    public long getInstrumentationBytesAdded() {
+        return this.stats.getBytesAdded();
+    }
+
+    @Override
+    public long getAverageProbeTimeNanos() {
+        return this.stats.getAverageProbeNanos();
+    }
+
+    @Override
+    public String getProbeTimeHistogram() {
+        return this.stats.getProbeTimeHistogram();
+    }
+
+    @Override
+    public double getOverheadCpuBudget() {
+        return this.overheadGovernor == null ? 0 : this.overheadGovernor
+                .getCpuBudget();
+    }
+
+    @Override
+    public synchronized void setAppName(String val) {
         this.appName = val;
+        publishConfig();
 
     }
 
     @Override
-    public void setAppInstance(String val) {
+    public synchronized void setAppInstance(String val) {
         this.appID = val;
+        publishConfig();
 
     }
 
     @Override
-    public void setUserEventTags(String val) {
+    public synchronized void setUserEventTags(String val) {
+
+        addUserEventTags(val);
+        publishConfig();
+
+    }
+
+    private void addUserEventTags(String val) {
 
         StringTokenizer st = new StringTokenizer(val, ",");
         while (st.hasMoreTokens()) {
@@ -1013,46 +1511,53 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
     }
 
     @Override
-    public void setTracingBlacklist(String val) {
+    public synchronized void setTracingBlacklist(String val) {
         this.blackList = new ArrayList<FilterListItem>();
         addToList(val, this.blackList);
+        publishConfig();
 
     }
 
     @Override
-    public void setTracingWhitelist(String val) {
+    public synchronized void setTracingWhitelist(String val) {
         this.whiteList = new ArrayList<FilterListItem>();
         addToList(val, this.whiteList);
+        publishConfig();
 
     }
 
     @Override
-    public void setTraceMethodEntered(boolean val) {
+    public synchronized void setTraceMethodEntered(boolean val) {
         this.traceMethodEntered = val;
+        publishConfig();
 
     }
 
     @Override
-    public void setTraceMethodExited(boolean val) {
+    public synchronized void setTraceMethodExited(boolean val) {
         this.traceMethodExited = val;
+        publishConfig();
 
     }
 
     @Override
-    public void setTraceClassLoaded(boolean val) {
+    public synchronized void setTraceClassLoaded(boolean val) {
         this.traceClassLoaded = val;
+        publishConfig();
 
     }
 
     @Override
-    public void setTraceErrors(boolean val) {
+    public synchronized void setTraceErrors(boolean val) {
         this.traceErrors = val;
+        publishConfig();
 
     }
 
     @Override
-    public void setTraceJMX(boolean val) {
+    public synchronized void setTraceJMX(boolean val) {
         this.traceJMX = val;
+        publishConfig();
 
     }
 
@@ -1076,8 +1581,9 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
     }
 
     @Override
-    public void setTraceHProf(boolean val) {
+    public synchronized void setTraceHProf(boolean val) {
         this.traceHprof = val;
+        publishConfig();
 
     }
 
@@ -1093,10 +1599,20 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
 
     }
 
+    @Override
+    public void setOverheadCpuBudget(double val) {
+        if (this.overheadGovernor != null)
+            this.overheadGovernor.setCpuBudget(val);
+
+    }
+
     @Override
     public void pause() throws Exception {
         this.transport.stop();
-        this.paused = true;
+        synchronized (this) {
+            this.paused = true;
+            publishConfig();
+        }
         stopJMX();
         stopHprof();
 
@@ -1105,7 +1621,10 @@ public class SplunkJavaAgent implements JavaAgentMXBean {
     @Override
     public void unpause() throws Exception {
         this.transport.start();
-        this.paused = false;
+        synchronized (this) {
+            this.paused = false;
+            publishConfig();
+        }
         startJMX();
         startHprof();
 
@@ -1,5 +1,7 @@
 package com.splunk.javaagent;
 
+import java.util.Arrays;
+
 /**
  * <pre>
  * This is a class to encapsulate a Splunk Log Event Message using Splunk best practice logging semantics.
@@ -36,9 +38,52 @@ package com.splunk.javaagent;
 public class SplunkLogEvent {
 
 	/**
-	 * Contents of the event message
+	 * Value types of the pairs
+	 */
+	private static final byte TYPE_STRING = 0;
+	private static final byte TYPE_LONG = 1;
+	private static final byte TYPE_DOUBLE = 2;
+	private static final byte TYPE_BOOLEAN = 3;
+	private static final byte TYPE_CHAR = 4;
+	// a Throwable and its stack depth , rendered as 3 pairs
+	private static final byte TYPE_THROWABLE = 5;
+	// pairs that were rendered ahead of time , written as is
+	private static final byte TYPE_RENDERED = 6;
+	// a Throwable whose stacktrace was replaced by a stack dictionary ID
+	private static final byte TYPE_THROWABLE_STACK_ID = 7;
+
+	private static final int INITIAL_PAIRS = 16;
+
+	/**
+	 * Contents of the event message , one array slot per pair. Primitive
+	 * values are kept in longValues(doubles as their raw bits) so adding them
+	 * never creates a String , references are kept in objectValues. The text
+	 * is only rendered when the event is written out , which is normally on
+	 * the transporter thread rather than the application thread that built
+	 * the event.
+	 */
+	private String[] keys;
+	private byte[] types;
+	private long[] longValues;
+	private Object[] objectValues;
+	private int size;
+
+	/**
+	 * Time the event was created
+	 */
+	private long timestamp;
+
+	/**
+	 * Render buffers are reused per thread , one that grew past this is
+	 * dropped so a single huge event doesn't pin the memory
 	 */
-	private StringBuffer eventMessage;
+	private static final int MAX_POOLED_BUILDER = 64 * 1024;
+	private static final ThreadLocal<StringBuilder> BUILDERS = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(512);
+		}
+	};
 
 	/**
 	 * Whether or not to put quotes around values
@@ -75,6 +120,7 @@ public class SplunkLogEvent {
 	private static final String THROWABLE_CLASS = "throwable_class";
 	private static final String THROWABLE_MESSAGE = "throwable_message";
 	private static final String THROWABLE_STACKTRACE_ELEMENTS = "stacktrace_elements";
+	private static final String THROWABLE_STACK_ID = "stackID";
 
 	/**
 	 * Splunk Common Information Model(CIM) Fields
@@ -1195,7 +1241,7 @@ public class SplunkLogEvent {
 	public SplunkLogEvent(String eventName, String eventID,
 			boolean useInternalDate, boolean quoteValues) {
 
-		this.eventMessage = new StringBuffer();
+		this(INITIAL_PAIRS);
 		this.quoteValues = quoteValues;
 		this.useInternalDate = useInternalDate;
 
@@ -1222,7 +1268,16 @@ public class SplunkLogEvent {
 	 */
 	public SplunkLogEvent() {
 
-		this.eventMessage = new StringBuffer();
+		this(INITIAL_PAIRS);
+	}
+
+	private SplunkLogEvent(int capacity) {
+
+		this.keys = new String[capacity];
+		this.types = new byte[capacity];
+		this.longValues = new long[capacity];
+		this.objectValues = new Object[capacity];
+		this.timestamp = System.currentTimeMillis();
 	}
 
 	/**
@@ -1230,14 +1285,260 @@ public class SplunkLogEvent {
 	 */
 	public SplunkLogEvent clone() {
 
-		SplunkLogEvent clone = new SplunkLogEvent();
+		SplunkLogEvent clone = new SplunkLogEvent(Math.max(size, 1));
 		clone.quoteValues = this.quoteValues;
 		clone.useInternalDate = this.useInternalDate;
-		clone.eventMessage.append(this.eventMessage);
+		clone.timestamp = this.timestamp;
+		System.arraycopy(this.keys, 0, clone.keys, 0, size);
+		System.arraycopy(this.types, 0, clone.types, 0, size);
+		System.arraycopy(this.longValues, 0, clone.longValues, 0, size);
+		System.arraycopy(this.objectValues, 0, clone.objectValues, 0, size);
+		clone.size = this.size;
 
 		return clone;
 	}
 
+	/**
+	 * Clear all the pairs so the event can be reused , the arrays are kept
+	 */
+	public void reset() {
+
+		for (int i = 0; i < size; i++) {
+			keys[i] = null;
+			objectValues[i] = null;
+		}
+		size = 0;
+		timestamp = System.currentTimeMillis();
+	}
+
+	/**
+	 * Clear all the pairs and start a new event in this instance
+	 * 
+	 * @param eventName
+	 *            the event name
+	 * @param eventID
+	 *            the event id
+	 */
+	public void reset(String eventName, String eventID) {
+
+		reset();
+		addPair(PREFIX_NAME, eventName);
+		addPair(PREFIX_EVENT_ID, eventID);
+	}
+
+	/**
+	 * Pairs that are the same on many events , rendered once ahead of time
+	 * with and without quoted values and added with
+	 * {@link SplunkLogEvent#addRenderedPairs(RenderedPairs)}
+	 */
+	public static final class RenderedPairs {
+
+		private final String[] keys;
+		private final String[] values;
+		private final String rendered;
+		private final String quotedRendered;
+
+		public RenderedPairs(String[] keys, String[] values) {
+
+			this.keys = keys.clone();
+			this.values = values.clone();
+			this.rendered = render(false);
+			this.quotedRendered = render(true);
+		}
+
+		private String render(boolean quoteValues) {
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < keys.length; i++) {
+				if (i > 0)
+					sb.append(PAIRDELIM);
+				sb.append(keys[i]).append(KVDELIM);
+				if (quoteValues)
+					sb.append(QUOTE).append(values[i]).append(QUOTE);
+				else
+					sb.append(values[i]);
+			}
+			return sb.toString();
+		}
+
+		public int size() {
+			return keys.length;
+		}
+
+		public String getKey(int index) {
+			return keys[index];
+		}
+
+		public String getValue(int index) {
+			return values[index];
+		}
+
+		/**
+		 * @param quoteValues
+		 * @return the pairs as "key=value key=value"
+		 */
+		public String toString(boolean quoteValues) {
+			return quoteValues ? quotedRendered : rendered;
+		}
+
+		@Override
+		public String toString() {
+			return rendered;
+		}
+	}
+
+	/**
+	 * Add pairs that were rendered ahead of time , they are spliced into the
+	 * event text as is
+	 * 
+	 * @param pairs
+	 */
+	public void addRenderedPairs(RenderedPairs pairs) {
+
+		if (pairs.size() == 0)
+			return;
+		int slot = nextSlot(null, TYPE_RENDERED);
+		objectValues[slot] = pairs;
+	}
+
+	/**
+	 * The pairs added by addRenderedPairs , null for any other pair
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public RenderedPairs getRenderedPairs(int index) {
+		return types[index] == TYPE_RENDERED ? (RenderedPairs) objectValues[index]
+				: null;
+	}
+
+	/**
+	 * True if the pair was added as an int or long
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public boolean isLong(int index) {
+		return types[index] == TYPE_LONG;
+	}
+
+	public long getLongValue(int index) {
+		return longValues[index];
+	}
+
+	/**
+	 * True if the pair was added as a double
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public boolean isDouble(int index) {
+		return types[index] == TYPE_DOUBLE;
+	}
+
+	public double getDoubleValue(int index) {
+		return Double.longBitsToDouble(longValues[index]);
+	}
+
+	public boolean isQuoteValues() {
+		return quoteValues;
+	}
+
+	/**
+	 * Number of pairs in the event
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Key of a pair , null for a pair that renders as several pairs
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public String getKey(int index) {
+		return keys[index];
+	}
+
+	/**
+	 * Value of a pair that was added as a String , null for any other type
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public String getStringValue(int index) {
+		return types[index] == TYPE_STRING ? (String) objectValues[index]
+				: null;
+	}
+
+	/**
+	 * The Throwable added by addThrowable , null for any other pair
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public Throwable getThrowable(int index) {
+		return types[index] == TYPE_THROWABLE ? (Throwable) objectValues[index]
+				: null;
+	}
+
+	/**
+	 * Maximum number of stacktrace elements to log for a Throwable pair , -1
+	 * for all
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public int getThrowableStackDepth(int index) {
+		return (int) longValues[index];
+	}
+
+	/**
+	 * Write a stack dictionary ID instead of the stacktrace elements for a
+	 * Throwable pair
+	 * 
+	 * @param index
+	 * @param stackID
+	 */
+	public void setThrowableStackID(int index, long stackID) {
+
+		types[index] = TYPE_THROWABLE_STACK_ID;
+		longValues[index] = stackID;
+	}
+
+	/**
+	 * Replace a pair with a numeric one , keeping its position in the event
+	 * 
+	 * @param index
+	 * @param key
+	 * @param value
+	 */
+	public void setPair(int index, String key, long value) {
+
+		keys[index] = key;
+		types[index] = TYPE_LONG;
+		longValues[index] = value;
+		objectValues[index] = null;
+	}
+
+	private int nextSlot(String key, byte type) {
+
+		if (size == keys.length) {
+			int capacity = keys.length << 1;
+			keys = Arrays.copyOf(keys, capacity);
+			types = Arrays.copyOf(types, capacity);
+			longValues = Arrays.copyOf(longValues, capacity);
+			objectValues = Arrays.copyOf(objectValues, capacity);
+		}
+		int slot = size++;
+		keys[slot] = key;
+		types[slot] = type;
+		return slot;
+	}
+
 	/**
 	 * Add a key value pair
 	 * 
@@ -1245,7 +1546,8 @@ public class SplunkLogEvent {
 	 * @param value
 	 */
 	public void addPair(String key, char value) {
-		addPair(key, String.valueOf(value));
+		int slot = nextSlot(key, TYPE_CHAR);
+		longValues[slot] = value;
 	}
 
 	/**
@@ -1255,7 +1557,8 @@ public class SplunkLogEvent {
 	 * @param value
 	 */
 	public void addPair(String key, boolean value) {
-		addPair(key, String.valueOf(value));
+		int slot = nextSlot(key, TYPE_BOOLEAN);
+		longValues[slot] = value ? 1 : 0;
 	}
 
 	/**
@@ -1265,7 +1568,8 @@ public class SplunkLogEvent {
 	 * @param value
 	 */
 	public void addPair(String key, double value) {
-		addPair(key, String.valueOf(value));
+		int slot = nextSlot(key, TYPE_DOUBLE);
+		longValues[slot] = Double.doubleToRawLongBits(value);
 	}
 
 	/**
@@ -1275,7 +1579,8 @@ public class SplunkLogEvent {
 	 * @param value
 	 */
 	public void addPair(String key, long value) {
-		addPair(key, String.valueOf(value));
+		int slot = nextSlot(key, TYPE_LONG);
+		longValues[slot] = value;
 	}
 
 	/**
@@ -1285,7 +1590,8 @@ public class SplunkLogEvent {
 	 * @param value
 	 */
 	public void addPair(String key, int value) {
-		addPair(key, String.valueOf(value));
+		int slot = nextSlot(key, TYPE_LONG);
+		longValues[slot] = value;
 	}
 
 	/**
@@ -1325,8 +1631,9 @@ public class SplunkLogEvent {
 	}
 
 	/**
-	 * Internal private method for formatting Throwable,Error,Exception objects
-	 * in a more linear and Splunk friendly manner than printStackTrace
+	 * Internal private method for adding Throwable,Error,Exception objects.
+	 * Only the reference is kept , the class , message and stacktrace are
+	 * formatted when the event is written out.
 	 * 
 	 * @param throwable
 	 *            the Throwable object to add to the event
@@ -1336,10 +1643,128 @@ public class SplunkLogEvent {
 
 	private void addThrowableObject(Throwable throwable, int stackTraceDepth) {
 
-		addPair(THROWABLE_CLASS, throwable.getClass().getCanonicalName());
-		addPair(THROWABLE_MESSAGE, throwable.getMessage());
-		StackTraceElement[] elements = throwable.getStackTrace();
-		StringBuffer sb = new StringBuffer();
+		int slot = nextSlot(null, TYPE_THROWABLE);
+		objectValues[slot] = throwable;
+		longValues[slot] = stackTraceDepth;
+	}
+
+	/**
+	 * Add a key value pair
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	public void addPair(String key, String value) {
+		int slot = nextSlot(key, TYPE_STRING);
+		objectValues[slot] = value;
+	}
+
+	/**
+	 * Time the event was created , this is the date written at the start of
+	 * the event string
+	 * 
+	 * @return
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * Write the completed event message to a builder
+	 * 
+	 * @param sb
+	 */
+	public void writeTo(StringBuilder sb) {
+
+		boolean first = true;
+		if (useInternalDate) {
+			sb.append(timestamp);
+			first = false;
+		}
+		for (int i = 0; i < size; i++) {
+			if (!first)
+				sb.append(PAIRDELIM);
+			first = false;
+			if (types[i] == TYPE_THROWABLE
+					|| types[i] == TYPE_THROWABLE_STACK_ID) {
+				appendThrowable(sb, i);
+				continue;
+			}
+			if (types[i] == TYPE_RENDERED) {
+				sb.append(((RenderedPairs) objectValues[i])
+						.toString(quoteValues));
+				continue;
+			}
+			sb.append(keys[i]).append(KVDELIM);
+			if (quoteValues) {
+				sb.append(QUOTE);
+				appendValue(sb, i);
+				sb.append(QUOTE);
+			} else
+				appendValue(sb, i);
+		}
+	}
+
+	private void appendValue(StringBuilder sb, int i) {
+
+		switch (types[i]) {
+		case TYPE_LONG:
+			sb.append(longValues[i]);
+			break;
+		case TYPE_DOUBLE:
+			sb.append(Double.longBitsToDouble(longValues[i]));
+			break;
+		case TYPE_BOOLEAN:
+			sb.append(longValues[i] != 0);
+			break;
+		case TYPE_CHAR:
+			sb.append((char) longValues[i]);
+			break;
+		default:
+			sb.append((String) objectValues[i]);
+		}
+	}
+
+	/**
+	 * Format a Throwable in a more linear and Splunk friendly manner than
+	 * printStackTrace
+	 */
+	private void appendThrowable(StringBuilder sb, int i) {
+
+		Throwable throwable = (Throwable) objectValues[i];
+		sb.append(THROWABLE_CLASS).append(KVDELIM);
+		if (quoteValues)
+			sb.append(QUOTE);
+		sb.append(throwable.getClass().getCanonicalName());
+		if (quoteValues)
+			sb.append(QUOTE);
+
+		sb.append(PAIRDELIM).append(THROWABLE_MESSAGE).append(KVDELIM);
+		if (quoteValues)
+			sb.append(QUOTE);
+		sb.append(throwable.getMessage());
+		if (quoteValues)
+			sb.append(QUOTE);
+
+		sb.append(PAIRDELIM);
+		if (types[i] == TYPE_THROWABLE_STACK_ID)
+			sb.append(THROWABLE_STACK_ID).append(KVDELIM);
+		else
+			sb.append(THROWABLE_STACKTRACE_ELEMENTS).append(KVDELIM);
+		if (quoteValues)
+			sb.append(QUOTE);
+		if (types[i] == TYPE_THROWABLE_STACK_ID)
+			sb.append(longValues[i]);
+		else
+			appendStackTrace(sb, throwable.getStackTrace(),
+					(int) longValues[i]);
+		if (quoteValues)
+			sb.append(QUOTE);
+	}
+
+	private static void appendStackTrace(StringBuilder sb,
+			StackTraceElement[] elements, int stackTraceDepth) {
+
 		int depth = 0;
 		for (StackTraceElement element : elements) {
 			depth++;
@@ -1349,24 +1774,19 @@ public class SplunkLogEvent {
 				break;
 
 		}
-		addPair(THROWABLE_STACKTRACE_ELEMENTS, sb.toString());
 	}
 
 	/**
-	 * Add a key value pair
+	 * Format stacktrace elements the same way as addThrowable does
 	 * 
-	 * @param key
-	 * @param value
+	 * @param elements
+	 * @return
 	 */
-	public void addPair(String key, String value) {
-
-		if (quoteValues)
-			this.eventMessage.append(key).append(KVDELIM).append(QUOTE)
-					.append(value).append(QUOTE).append(PAIRDELIM);
-		else
-			this.eventMessage.append(key).append(KVDELIM).append(value)
-					.append(PAIRDELIM);
+	public static String renderStackTrace(StackTraceElement[] elements) {
 
+		StringBuilder sb = new StringBuilder();
+		appendStackTrace(sb, elements, -1);
+		return sb.toString();
 	}
 
 	@Override
@@ -1375,18 +1795,13 @@ public class SplunkLogEvent {
 	 */
 	public String toString() {
 
-		String event = "";
-
-		if (useInternalDate) {
-
-			StringBuffer clonedMessage = new StringBuffer();
-			clonedMessage.append(System.currentTimeMillis()).append(PAIRDELIM)
-					.append(this.eventMessage);
-			event = clonedMessage.toString();
-		} else
-			event = eventMessage.toString();
-		// trim off trailing pair delim char(s)
-		return event.substring(0, event.length() - PAIRDELIM.length());
+		StringBuilder sb = BUILDERS.get();
+		sb.setLength(0);
+		writeTo(sb);
+		String event = sb.toString();
+		if (sb.capacity() > MAX_POOLED_BUILDER)
+			BUILDERS.set(new StringBuilder(512));
+		return event;
 	}
 
 	public void setAcManagementDestNtDomain(String acManagementDestNtDomain) {
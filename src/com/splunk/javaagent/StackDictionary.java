@@ -0,0 +1,162 @@
+package com.splunk.javaagent;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.splunk.javaagent.transport.SplunkTransport;
+
+/**
+ * Sends each distinct exception stacktrace once instead of with every event.
+ *
+ * The first time a stack is seen it is given an ID and sent in a "stack_def"
+ * event , events with that stack then carry stackID instead of
+ * stacktrace_elements. Like {@link StringDictionary} a stack is sent again
+ * every re-announce interval , IDs are unique within one run of one agent and
+ * the least recently used stacks are evicted once the dictionary is full.
+ *
+ * <pre>
+ * name="stack_def" event_id="splunkagent" appName="myapp" appID="myjvm" stackID="7" stacktrace_elements="..."
+ * </pre>
+ *
+ * Only used by the transporter thread , so not thread safe.
+ *
+ */
+public class StackDictionary {
+
+	private final long reannounceMillis;
+
+	private final LinkedHashMap<StackKey, Definition> entries;
+	private int nextID;
+
+	static class Definition {
+
+		final int id;
+		long announced;
+
+		Definition(int id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * The elements of a stack , hashed once
+	 */
+	static class StackKey {
+
+		final StackTraceElement[] elements;
+		final int hash;
+
+		StackKey(StackTraceElement[] elements) {
+			this.elements = elements;
+			this.hash = Arrays.hashCode(elements);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (this == obj)
+				return true;
+			if (!(obj instanceof StackKey))
+				return false;
+			StackKey other = (StackKey) obj;
+			return hash == other.hash
+					&& Arrays.equals(elements, other.elements);
+		}
+	}
+
+	/**
+	 * @param maxSize
+	 *            max number of stacks held
+	 * @param reannounceSeconds
+	 *            how often a stack that is still in use is sent again
+	 * @param firstID
+	 *            a dictionary that replaces another one continues from its
+	 *            {@link #getNextID()} so IDs are never reused within a run
+	 */
+	public StackDictionary(final int maxSize, int reannounceSeconds,
+			int firstID) {
+
+		this.reannounceMillis = reannounceSeconds * 1000L;
+		this.nextID = firstID;
+		this.entries = new LinkedHashMap<StackKey, Definition>(256, 0.75f,
+				true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<StackKey, Definition> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Replace the stacktraces of the Throwables in an event with stack IDs ,
+	 * sending a stack_def event ahead of it for any stack that is new or due
+	 * to be sent again
+	 *
+	 * @param event
+	 * @param config
+	 *            supplies the tags for the stack_def events
+	 * @param transport
+	 */
+	public void encode(SplunkLogEvent event, AgentConfig config,
+			SplunkTransport transport) {
+
+		for (int i = 0; i < event.size(); i++) {
+			Throwable throwable = event.getThrowable(i);
+			if (throwable == null)
+				continue;
+			int depth = event.getThrowableStackDepth(i);
+			// no stack was asked for , nothing to replace
+			if (depth == 0)
+				continue;
+
+			StackTraceElement[] elements = throwable.getStackTrace();
+			if (depth > 0 && depth < elements.length)
+				elements = Arrays.copyOf(elements, depth);
+			StackKey key = new StackKey(elements);
+
+			Definition entry = entries.get(key);
+			if (entry == null) {
+				entry = new Definition(nextID++);
+				entries.put(key, entry);
+			}
+			long now = System.currentTimeMillis();
+			if (entry.announced == 0
+					|| now - entry.announced >= reannounceMillis) {
+				announce(entry.id, elements, config, transport);
+				entry.announced = now;
+			}
+			event.setThrowableStackID(i, entry.id);
+		}
+	}
+
+	private void announce(int id, StackTraceElement[] elements,
+			AgentConfig config, SplunkTransport transport) {
+
+		SplunkLogEvent def = new SplunkLogEvent("stack_def", "splunkagent",
+				true, true);
+		config.addTags(def);
+		def.addPair("stackID", id);
+		def.addPair("stacktrace_elements",
+				SplunkLogEvent.renderStackTrace(elements));
+		transport.send(def);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getNextID() {
+		return nextID;
+	}
+
+}
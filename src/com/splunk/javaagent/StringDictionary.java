@@ -0,0 +1,152 @@
+package com.splunk.javaagent;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.splunk.javaagent.transport.SplunkTransport;
+
+/**
+ * Replaces long , endlessly repeated values(class names , method names and
+ * descriptors , thread names) with compact numeric IDs.
+ *
+ * The first time a value is seen it is given an ID and announced in a "dict"
+ * event , later events carry only the ID in a field named after the original
+ * key with an "ID" suffix , ie: className=com/acme/Foo becomes
+ * classNameID=12. Values are announced again every re-announce interval so
+ * that searches over a recent time range can always resolve them.
+ *
+ * <pre>
+ * name=dict event_id=splunkagent appName="myapp" appID="myjvm" dictID="12" dictValue="com/acme/Foo"
+ * </pre>
+ *
+ * IDs are only unique within one run of one agent , so lookups should be
+ * keyed on appID as well as dictID. The dictionary is bounded , the least
+ * recently used values are evicted and get a new ID if they are seen again.
+ *
+ * Only used by the transporter thread , so not thread safe.
+ *
+ */
+public class StringDictionary {
+
+	public static final String[] DEFAULT_KEYS = { "className", "methodName",
+			"methodDesc", "threadName" };
+
+	private final String[] keys;
+	private final String[] idKeys;
+	private final long reannounceMillis;
+
+	private final LinkedHashMap<String, Definition> entries;
+	private int nextID;
+
+	static class Definition {
+
+		final int id;
+		long announced;
+
+		Definition(int id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * @param keys
+	 *            the keys whose values are replaced
+	 * @param maxSize
+	 *            max number of values held
+	 * @param reannounceSeconds
+	 *            how often a value that is still in use is announced again
+	 * @param firstID
+	 *            a dictionary that replaces another one continues from its
+	 *            {@link #getNextID()} so IDs are never reused within a run
+	 */
+	public StringDictionary(String[] keys, final int maxSize,
+			int reannounceSeconds, int firstID) {
+
+		this.keys = keys.clone();
+		this.idKeys = new String[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			this.idKeys[i] = keys[i] + "ID";
+		}
+		this.reannounceMillis = reannounceSeconds * 1000L;
+		this.nextID = firstID;
+		this.entries = new LinkedHashMap<String, Definition>(256, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, Definition> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Replace the dictionary values in an event with their IDs , sending a
+	 * dict event ahead of it for any value that is new or due to be announced
+	 * again
+	 *
+	 * @param event
+	 * @param config
+	 *            supplies the tags for the dict events
+	 * @param transport
+	 */
+	public void encode(SplunkLogEvent event, AgentConfig config,
+			SplunkTransport transport) {
+
+		long now = 0;
+		for (int i = 0; i < event.size(); i++) {
+			int k = keyIndex(event.getKey(i));
+			if (k < 0)
+				continue;
+			String value = event.getStringValue(i);
+			if (value == null)
+				continue;
+
+			Definition entry = entries.get(value);
+			if (entry == null) {
+				entry = new Definition(nextID++);
+				entries.put(value, entry);
+			}
+			if (now == 0)
+				now = System.currentTimeMillis();
+			if (entry.announced == 0
+					|| now - entry.announced >= reannounceMillis) {
+				announce(entry.id, value, config, transport);
+				entry.announced = now;
+			}
+			event.setPair(i, idKeys[k], entry.id);
+		}
+	}
+
+	private int keyIndex(String key) {
+
+		if (key == null)
+			return -1;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i].equals(key))
+				return i;
+		}
+		return -1;
+	}
+
+	private void announce(int id, String value, AgentConfig config,
+			SplunkTransport transport) {
+
+		SplunkLogEvent dict = new SplunkLogEvent("dict", "splunkagent", true,
+				true);
+		config.addTags(dict);
+		dict.addPair("dictID", id);
+		dict.addPair("dictValue", value);
+		transport.send(dict);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getNextID() {
+		return nextID;
+	}
+
+}
@@ -7,6 +7,10 @@ public interface HECTransportMXBean {
 	// getter
 	public long getCurrentQueueSize();
 
+	public long getCurrentQueueSizeInBytes();
+
+	public long getDroppedEvents();
+
 	public String getHost();
 
 	public int getPort();
@@ -27,6 +31,8 @@ public interface HECTransportMXBean {
 
 	public boolean getDropEventsOnFullQueue();
 
+	public String getQueueFullPolicy();
+
 	public long getMaxBatchSizeEvents();
 
 	public long getMaxInactiveTimeBeforeBatchFlush();
@@ -56,6 +62,8 @@ public interface HECTransportMXBean {
 
 	public void setDropEventsOnFullQueue(boolean val);
 
+	public void setQueueFullPolicy(String val);
+
 	public void setBatchMode(boolean batchMode);
 
 	public void setMaxBatchSizeBytes(long maxBatchSizeBytes);
@@ -37,6 +37,38 @@ public interface JavaAgentMXBean {
 
 	public int getTraceHProfFrequency();
 
+	public String getCircuitBreakerState();
+
+	public long getCircuitBreakerShedEvents();
+
+	public double getOverheadCpuPercent();
+
+	public double getOverheadProbeCpuPercent();
+
+	public long getOverheadAllocatedBytes();
+
+	public int getOverheadLevel();
+
+	public double getOverheadCpuBudget();
+
+	public long getTransformedClasses();
+
+	public long getTransformErrors();
+
+	public long getTransformTimeMillis();
+
+	public long getMaxTransformTimeMicros();
+
+	public String getSlowestTransformedClass();
+
+	public long getInstrumentedMethods();
+
+	public long getInstrumentationBytesAdded();
+
+	public long getAverageProbeTimeNanos();
+
+	public String getProbeTimeHistogram();
+
 	// setter
 	public void setAppName(String val);
 
@@ -70,6 +102,8 @@ public interface JavaAgentMXBean {
 
 	public void setTraceHProfFrequency(int val);
 
+	public void setOverheadCpuBudget(double val);
+
 	// operations
 
 	public void pause() throws Exception;
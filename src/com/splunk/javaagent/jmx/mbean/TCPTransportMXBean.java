@@ -7,6 +7,10 @@ public interface TCPTransportMXBean {
 	// getter
 	public long getCurrentQueueSize();
 
+	public long getCurrentQueueSizeInBytes();
+
+	public long getDroppedEvents();
+
 	public String getHost();
 
 	public int getPort();
@@ -15,6 +19,8 @@ public interface TCPTransportMXBean {
 
 	public boolean getDropEventsOnFullQueue();
 
+	public String getQueueFullPolicy();
+
 	// setter
 	public void setHost(String val);
 
@@ -24,6 +30,8 @@ public interface TCPTransportMXBean {
 
 	public void setDropEventsOnFullQueue(boolean val);
 
+	public void setQueueFullPolicy(String val);
+
 	// operations
 	public void start() throws Exception;
 
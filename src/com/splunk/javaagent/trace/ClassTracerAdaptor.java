@@ -11,6 +11,7 @@ public class ClassTracerAdaptor extends ClassVisitor {
 
 	private String className;
 	private boolean isInterface;
+	private int methodsInstrumented = 0;
 
 	public ClassTracerAdaptor(ClassVisitor cv) {
 		super(Opcodes.ASM5, cv);
@@ -34,8 +35,13 @@ public class ClassTracerAdaptor extends ClassVisitor {
 				&& !SplunkJavaAgent.isBlackListed(className, name)
 				&& SplunkJavaAgent.isWhiteListed(className, name)) {
 			mv = new MethodTracerAdaptor(className, name, mv, desc, access);
+			methodsInstrumented++;
 		}
 		return mv;
 	}
 
+	public int getMethodsInstrumented() {
+		return methodsInstrumented;
+	}
+
 }
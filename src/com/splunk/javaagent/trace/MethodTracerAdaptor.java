@@ -13,6 +13,10 @@ public class MethodTracerAdaptor extends AdviceAdapter {
 	private String cName;
 	private String mName;
 	private String desc;
+	// whether this call is sampled , decided on entry and passed to the exit
+	// probe so that the entered and exited events are kept or dropped
+	// together
+	private int sampledVar;
 
 	public MethodTracerAdaptor(String owner, String name, MethodVisitor mv,
 			String desc, int access) {
@@ -38,8 +42,10 @@ public class MethodTracerAdaptor extends AdviceAdapter {
 					Opcodes.INVOKESTATIC,
 					"com/splunk/javaagent/SplunkJavaAgent",
 					"methodEntered",
-					"(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V",
+					"(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)Z",
 					false);
+			sampledVar = newLocal(Type.BOOLEAN_TYPE);
+			storeLocal(sampledVar);
 
 		} catch (Exception e) {
 			logger.error("Error visiting code : " + e.getMessage());
@@ -78,11 +84,12 @@ public class MethodTracerAdaptor extends AdviceAdapter {
 				super.visitLdcInsn(cName);
 				super.visitLdcInsn(mName);
 				super.visitLdcInsn(desc);
+				loadLocal(sampledVar);
 				super.visitMethodInsn(
 						Opcodes.INVOKESTATIC,
 						"com/splunk/javaagent/SplunkJavaAgent",
 						"methodExited",
-						"(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V",
+						"(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Z)V",
 						false);
 			}
 
@@ -55,12 +55,26 @@ public class SplunkClassFileTransformer implements ClassFileTransformer {
 			byte[] classFileBuffer) {
 
 		SplunkJavaAgent.classLoaded(className);
-		ClassReader cr = new ClassReader(classFileBuffer);
-		ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
-		ClassTracerAdaptor ca = new ClassTracerAdaptor(cw);
-		cr.accept(ca, 0);
-
-		return cw.toByteArray();
+		long start = System.nanoTime();
+		try {
+			ClassReader cr = new ClassReader(classFileBuffer);
+			ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
+			ClassTracerAdaptor ca = new ClassTracerAdaptor(cw);
+			cr.accept(ca, 0);
+
+			byte[] transformed = cw.toByteArray();
+			SplunkJavaAgent.classTransformed(className, System.nanoTime()
+					- start, ca.getMethodsInstrumented(), transformed.length
+					- classFileBuffer.length);
+			return transformed;
+		} catch (RuntimeException e) {
+			// the JVM would discard the exception anyway and load the
+			// original class , just make the failure visible
+			SplunkJavaAgent.classTransformFailed();
+			logger.error("Error transforming class " + className + " : "
+					+ e.getMessage());
+			throw e;
+		}
 
 	}
 
@@ -0,0 +1,220 @@
+package com.splunk.javaagent.trace;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact identity of the thread that fired a probe.
+ *
+ * Platform threads cache their identity in a ThreadLocal. Virtual threads
+ * never get any per thread state , so millions of short lived virtual threads
+ * do not leave anything behind in the agent. Platform thread names are
+ * interned into a bounded table , virtual thread names are not as they are
+ * rarely seen twice. Virtual threads can optionally be aggregated by their
+ * carrier thread.
+ *
+ * Nothing in here holds a monitor , so a probe never pins a virtual thread to
+ * its carrier.
+ *
+ */
+public final class ThreadIdentity {
+
+	public static final int AGGREGATE_NONE = 0;
+	public static final int AGGREGATE_CARRIER = 1;
+
+	private static final String UNKNOWN_CARRIER = "unknown";
+
+	// Thread.isVirtual() only exists on Java 19+
+	private static final MethodHandle IS_VIRTUAL = lookupIsVirtual();
+	// VirtualThread.carrierThread , only readable when java.lang is opened to
+	// the agent , otherwise the carrier is parsed from Thread.toString()
+	private static final MethodHandle CARRIER_THREAD = lookupCarrierThread();
+
+	private static final ThreadLocal<ThreadIdentity> platformIdentity = new ThreadLocal<ThreadIdentity>();
+
+	private static final ConcurrentHashMap<String, String> internedNames = new ConcurrentHashMap<String, String>();
+	private static final ConcurrentHashMap<String, ThreadIdentity> aggregates = new ConcurrentHashMap<String, ThreadIdentity>();
+
+	private static volatile int aggregation = AGGREGATE_NONE;
+	private static volatile int maxInternedNames = 1024;
+
+	private final long id;
+	private final String name;
+	private final boolean virtual;
+
+	private ThreadIdentity(long id, String name, boolean virtual) {
+		this.id = id;
+		this.name = name;
+		this.virtual = virtual;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Identity of the calling thread
+	 *
+	 * @return
+	 */
+	public static ThreadIdentity current() {
+
+		Thread thread = Thread.currentThread();
+
+		if (!isVirtual(thread)) {
+			ThreadIdentity identity = platformIdentity.get();
+			String threadName = thread.getName();
+			if (identity == null || !identity.name.equals(threadName)) {
+				identity = new ThreadIdentity(thread.getId(),
+						intern(threadName), false);
+				platformIdentity.set(identity);
+			}
+			return identity;
+		}
+
+		// looked up on every event , a virtual thread can move to another
+		// carrier whenever it blocks
+		if (aggregation == AGGREGATE_CARRIER)
+			return aggregate(carrierName(thread));
+		return new ThreadIdentity(thread.getId(), thread.getName(), true);
+	}
+
+	private static ThreadIdentity aggregate(String key) {
+
+		ThreadIdentity identity = aggregates.get(key);
+		if (identity == null) {
+			identity = new ThreadIdentity(-1, intern(key), true);
+			if (aggregates.size() < maxInternedNames) {
+				ThreadIdentity existing = aggregates.putIfAbsent(key, identity);
+				if (existing != null)
+					identity = existing;
+			}
+		}
+		return identity;
+	}
+
+	/**
+	 * The carrier the virtual thread is mounted on now. Read from the
+	 * VirtualThread if it is accessible , otherwise parsed from its string
+	 * form , "VirtualThread[#22,name]/runnable@ForkJoinPool-1-worker-1" , the
+	 * carrier is only published after the "@"
+	 *
+	 * @param thread
+	 * @return
+	 */
+	private static String carrierName(Thread thread) {
+
+		if (CARRIER_THREAD != null) {
+			try {
+				Thread carrier = (Thread) CARRIER_THREAD.invokeExact(thread);
+				if (carrier != null)
+					return carrier.getName();
+			} catch (Throwable t) {
+			}
+		}
+		String description = thread.toString();
+		int index = description.lastIndexOf('@');
+		if (index < 0 || index == description.length() - 1)
+			return UNKNOWN_CARRIER;
+		return description.substring(index + 1);
+	}
+
+	/**
+	 * Intern a thread name into a bounded table. Once the table is full , new
+	 * names are passed through as is rather than growing the table.
+	 *
+	 * @param threadName
+	 * @return
+	 */
+	static String intern(String threadName) {
+
+		if (threadName == null)
+			return "";
+		String interned = internedNames.get(threadName);
+		if (interned != null)
+			return interned;
+		if (internedNames.size() >= maxInternedNames)
+			return threadName;
+		interned = internedNames.putIfAbsent(threadName, threadName);
+		return interned == null ? threadName : interned;
+	}
+
+	private static boolean isVirtual(Thread thread) {
+
+		if (IS_VIRTUAL == null)
+			return false;
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(thread);
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	private static MethodHandle lookupCarrierThread() {
+
+		try {
+			Field field = Class.forName("java.lang.VirtualThread")
+					.getDeclaredField("carrierThread");
+			field.setAccessible(true);
+			return MethodHandles.lookup().unreflectGetter(field)
+					.asType(MethodType.methodType(Thread.class, Thread.class));
+		} catch (Throwable t) {
+			// before Java 21 , or java.lang isn't opened to the agent
+			return null;
+		}
+	}
+
+	private static MethodHandle lookupIsVirtual() {
+
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class,
+					"isVirtual", MethodType.methodType(boolean.class));
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * How virtual threads are reported
+	 *
+	 * @param mode
+	 *            thread | carrier
+	 */
+	public static void setVirtualThreadAggregation(String mode) {
+
+		if ("carrier".equalsIgnoreCase(mode))
+			aggregation = AGGREGATE_CARRIER;
+		else
+			aggregation = AGGREGATE_NONE;
+	}
+
+	public static String getVirtualThreadAggregation() {
+		return aggregation == AGGREGATE_CARRIER ? "carrier" : "thread";
+	}
+
+	/**
+	 * Upper bound on the number of distinct thread names that are interned
+	 *
+	 * @param max
+	 */
+	public static void setMaxInternedNames(int max) {
+
+		maxInternedNames = max;
+		if (internedNames.size() > max)
+			internedNames.clear();
+		if (aggregates.size() > max)
+			aggregates.clear();
+	}
+
+}
@@ -0,0 +1,286 @@
+package com.splunk.javaagent.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Circuit breaker driven by the health of the transport.
+ *
+ * Transports report the outcome and latency of every send , the transporter
+ * thread reports how full the internal event queue is. Too many consecutive
+ * failures or slow sends , or a queue that is close to full , opens the
+ * breaker. While it is open the probes don't build or queue any events , they
+ * just count what they would have sent (or do nothing at all) so that an
+ * unreachable Splunk never blocks application threads. After the open
+ * duration has elapsed the breaker lets a limited number of probe events
+ * through (half open) and the next send decides whether it closes or opens
+ * again. If no send has decided within another open duration , another batch
+ * of probe events is let through.
+ *
+ */
+public class CircuitBreaker {
+
+	private static Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	// event types that are counted while the breaker is open
+	public static final int CLASS_LOADED = 0;
+	public static final int METHOD_ENTERED = 1;
+	public static final int METHOD_EXITED = 2;
+	public static final int THROWABLE_CAUGHT = 3;
+	public static final int JMX = 4;
+	public static final int HPROF = 5;
+
+	private static final String[] EVENT_TYPE_NAMES = { "class_loaded",
+			"method_entered", "method_exited", "throwable_caught", "jmx",
+			"hprof" };
+
+	private boolean enabled = true;
+	// false = drop events without counting them
+	private boolean countWhenOpen = true;
+	private int failureThreshold = 5;
+	private long latencyThreshold = 5000;// millis
+	private int queueFillThreshold = 90;// percent
+	private long openDuration = 30000;// millis
+	// events let through per open duration while half open
+	private int probeEvents = 100;
+
+	private final AtomicInteger state = new AtomicInteger(CLOSED);
+	private volatile long openedTime;
+	private final AtomicInteger probesLeft = new AtomicInteger();
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private final AtomicLong timesOpened = new AtomicLong();
+
+	private final AtomicLongArray shedCounts = new AtomicLongArray(
+			EVENT_TYPE_NAMES.length);
+
+	/**
+	 * Called by the probes. True if the event should be built and queued ,
+	 * otherwise the event is counted(if configured to) and should be skipped.
+	 *
+	 * @param eventType
+	 * @return
+	 */
+	public boolean allowEvent(int eventType) {
+
+		int current = state.get();
+		if (current == CLOSED || !enabled)
+			return true;
+		if (System.currentTimeMillis() - openedTime >= openDuration) {
+			synchronized (this) {
+				// first probes , or the last ones didn't get a verdict
+				long now = System.currentTimeMillis();
+				if (now - openedTime >= openDuration) {
+					if (state.compareAndSet(OPEN, HALF_OPEN))
+						logger.info("Circuit breaker half open ,"
+								+ " probing transport");
+					if (state.get() == HALF_OPEN) {
+						openedTime = now;
+						probesLeft.set(probeEvents);
+					}
+				}
+			}
+			current = state.get();
+		}
+		if (current == HALF_OPEN && probesLeft.getAndDecrement() > 0)
+			return true;
+		if (countWhenOpen)
+			shedCounts.incrementAndGet(eventType);
+		return false;
+	}
+
+	/**
+	 * A send to Splunk completed
+	 *
+	 * @param latencyMillis
+	 */
+	public void recordSuccess(long latencyMillis) {
+
+		if (latencyMillis > latencyThreshold) {
+			recordFailure();
+			return;
+		}
+		consecutiveFailures.set(0);
+		if (state.get() != CLOSED) {
+			state.set(CLOSED);
+			logger.info("Circuit breaker closed , transport has recovered");
+		}
+	}
+
+	/**
+	 * A send to Splunk failed or was too slow
+	 */
+	public void recordFailure() {
+
+		int failures = consecutiveFailures.incrementAndGet();
+		if (state.get() == HALF_OPEN || failures >= failureThreshold)
+			trip("transport failures");
+	}
+
+	/**
+	 * How full the agent's internal event queue is
+	 *
+	 * @param size
+	 * @param capacity
+	 */
+	public void recordQueueFill(int size, int capacity) {
+
+		if (capacity > 0 && (size * 100L) / capacity >= queueFillThreshold)
+			trip("event queue is " + size + "/" + capacity + " full");
+	}
+
+	/**
+	 * Called when a probe could not queue an event because the queue was full
+	 */
+	public void recordQueueFull() {
+		trip("event queue is full");
+	}
+
+	private void trip(String reason) {
+
+		if (!enabled)
+			return;
+		openedTime = System.currentTimeMillis();
+		int previous = state.getAndSet(OPEN);
+		if (previous != OPEN) {
+			timesOpened.incrementAndGet();
+			logger.error("Circuit breaker opened , shedding probe events : "
+					+ reason);
+		}
+	}
+
+	/**
+	 * Counts of the events that were shed while the breaker was open , resets
+	 * the counts
+	 *
+	 * @return
+	 */
+	public long[] drainShedCounts() {
+
+		long[] counts = new long[EVENT_TYPE_NAMES.length];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = shedCounts.getAndSet(i, 0);
+		}
+		return counts;
+	}
+
+	public static String getEventTypeName(int eventType) {
+		return EVENT_TYPE_NAMES[eventType];
+	}
+
+	public boolean isOpen() {
+		return state.get() != CLOSED;
+	}
+
+	public String getState() {
+
+		switch (state.get()) {
+		case OPEN:
+			return "open";
+		case HALF_OPEN:
+			return "half_open";
+		default:
+			return "closed";
+		}
+	}
+
+	public long getTimesOpened() {
+		return timesOpened.get();
+	}
+
+	public long getShedCount() {
+
+		long total = 0;
+		for (int i = 0; i < shedCounts.length(); i++) {
+			total += shedCounts.get(i);
+		}
+		return total;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+		if (!enabled)
+			state.set(CLOSED);
+	}
+
+	public boolean isCountWhenOpen() {
+		return countWhenOpen;
+	}
+
+	/**
+	 * If true , probes keep per event type counters while the breaker is open ,
+	 * otherwise they do nothing at all
+	 *
+	 * @param countWhenOpen
+	 */
+	public void setCountWhenOpen(boolean countWhenOpen) {
+		this.countWhenOpen = countWhenOpen;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public long getLatencyThreshold() {
+		return latencyThreshold;
+	}
+
+	public void setLatencyThreshold(long latencyThreshold) {
+		this.latencyThreshold = latencyThreshold;
+	}
+
+	public int getQueueFillThreshold() {
+		return queueFillThreshold;
+	}
+
+	public void setQueueFillThreshold(int queueFillThreshold) {
+		this.queueFillThreshold = queueFillThreshold;
+	}
+
+	public long getOpenDuration() {
+		return openDuration;
+	}
+
+	public void setOpenDuration(long openDuration) {
+		this.openDuration = openDuration;
+	}
+
+	public int getProbeEvents() {
+		return probeEvents;
+	}
+
+	/**
+	 * @param probeEvents
+	 *            events let through per open duration while half open
+	 */
+	public void setProbeEvents(int probeEvents) {
+		this.probeEvents = probeEvents;
+	}
+
+	/**
+	 * A send has made no progress for this long , counts as a failure once it
+	 * is longer than the latency threshold
+	 *
+	 * @param stalledMillis
+	 */
+	public void recordStall(long stalledMillis) {
+
+		if (stalledMillis > latencyThreshold)
+			recordFailure();
+	}
+
+}
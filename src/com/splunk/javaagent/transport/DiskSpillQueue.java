@@ -0,0 +1,508 @@
+package com.splunk.javaagent.transport;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent FIFO queue of events in memory mapped segment files , for the
+ * events that don't fit in a transport's in memory queue.
+ *
+ * Each segment file starts with a header holding the offset of its first
+ * unread record , the read cursor , followed by records of length , CRC32 and
+ * bytes. Records are appended to the last segment until it is full , then a
+ * new segment is started , and a segment is deleted , and its mapping
+ * released , once it has been read. Records put back at the head of the
+ * queue go into the room the read records left at the front of the first
+ * segment , or into new segments ahead of it , under the same disk cap.
+ * Writes go to the mapped memory so they survive the JVM dying , the segments
+ * left by a previous run are replayed from their cursors when the queue is
+ * opened. A record whose checksum doesn't match , a write that was cut short ,
+ * ends its segment.
+ *
+ * The directory is locked while the queue is open , so that two queues ,
+ * in this JVM or another , never share the segment files.
+ *
+ * Not thread safe.
+ *
+ */
+public class DiskSpillQueue {
+
+	private static Logger logger = Logger.getLogger(DiskSpillQueue.class);
+
+	private static final String PREFIX = "spill-";
+	private static final String SUFFIX = ".dat";
+	private static final int MAGIC = 0x534a4151;
+	// magic , read cursor
+	private static final int HEADER_SIZE = 8;
+	// length , CRC32
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final long MIN_SEGMENT_SIZE = 64 * 1024;
+	private static final String LOCK_FILE = "spill.lock";
+
+	// releases a mapping straight away rather than when the buffer is
+	// collected , not public API so looked up once
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+		} catch (Exception e) {
+			// before Java 9 , the buffer's own cleaner is used
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	static class Segment {
+
+		final long seq;
+		final File file;
+		final MappedByteBuffer buffer;
+		int readPosition = HEADER_SIZE;
+		int writePosition = HEADER_SIZE;
+		int records;
+
+		Segment(long seq, File file, MappedByteBuffer buffer) {
+			this.seq = seq;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File dir;
+	private final long segmentSize;
+	private final long maxSize;
+
+	// oldest first , the last one is appended to
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	// bytes of segment files
+	private long size;
+	private long records;
+	private final CRC32 crc = new CRC32();
+
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	/**
+	 * Open the queue , picking up the segments left in the directory by a
+	 * previous run
+	 *
+	 * @param dir
+	 *            created if it doesn't exist
+	 * @param segmentSize
+	 *            bytes per segment file
+	 * @param maxSize
+	 *            bytes of all the segment files
+	 * @throws IOException
+	 */
+	public DiskSpillQueue(File dir, long segmentSize, long maxSize)
+			throws IOException {
+
+		this.dir = dir;
+		this.segmentSize = Math.max(MIN_SEGMENT_SIZE,
+				Math.min(segmentSize, Integer.MAX_VALUE));
+		this.maxSize = maxSize;
+
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can't create spill directory " + dir);
+
+		lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+		FileLock locked;
+		try {
+			locked = lockFile.getChannel().tryLock();
+		} catch (OverlappingFileLockException e) {
+			// held by another queue in this JVM
+			locked = null;
+		}
+		if (locked == null) {
+			lockFile.close();
+			throw new IOException("Spill directory " + dir
+					+ " is in use by another spill queue");
+		}
+		lock = locked;
+
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null) {
+			unlock();
+			throw new IOException("Can't list spill directory " + dir);
+		}
+
+		List<Segment> found = new ArrayList<Segment>();
+		for (File file : files) {
+			try {
+				found.add(load(seqOf(file), file));
+			} catch (Exception e) {
+				logger.error("Error loading spill segment " + file + " : "
+						+ e.getMessage());
+			}
+		}
+		Segment[] sorted = found.toArray(new Segment[found.size()]);
+		Arrays.sort(sorted, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+			}
+		});
+		for (Segment segment : sorted) {
+			size += segment.buffer.capacity();
+			records += segment.records;
+			segments.addLast(segment);
+		}
+		// the tail stays to be appended to
+		while (segments.size() > 1 && segments.getFirst().records == 0)
+			delete(segments.removeFirst());
+	}
+
+	private static long seqOf(File file) {
+
+		String name = file.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length()
+				- SUFFIX.length()));
+	}
+
+	private static MappedByteBuffer map(File file, long length)
+			throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// the mapping outlives the file handle
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private Segment load(long seq, File file) throws IOException {
+
+		Segment segment = new Segment(seq, file, map(file, file.length()));
+		ByteBuffer buffer = segment.buffer;
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+			throw new IOException("not a spill segment");
+		int cursor = buffer.getInt(4);
+		if (cursor < HEADER_SIZE || cursor > buffer.capacity())
+			cursor = HEADER_SIZE;
+
+		// the records before the cursor have been read , or overwritten by
+		// ones put back ahead of it , so the unread ones are counted from
+		// there to the end
+		int position = cursor;
+		byte[] record;
+		while ((record = read(buffer, position)) != null) {
+			segment.records++;
+			position += RECORD_HEADER_SIZE + record.length;
+		}
+		segment.writePosition = position;
+		segment.readPosition = cursor;
+		return segment;
+	}
+
+	private Segment create(long seq, long length) throws IOException {
+
+		File file = new File(dir, PREFIX + seq + SUFFIX);
+		if (file.exists() && !file.delete())
+			throw new IOException("Can't replace spill segment " + file);
+		Segment segment = new Segment(seq, file, map(file, length));
+		segment.buffer.putInt(0, MAGIC);
+		segment.buffer.putInt(4, HEADER_SIZE);
+		size += length;
+		return segment;
+	}
+
+	private void delete(Segment segment) {
+
+		size -= segment.buffer.capacity();
+		records -= segment.records;
+		// so the space is freed now , and so the delete works on Windows
+		unmap(segment.buffer);
+		if (!segment.file.delete())
+			logger.error("Can't delete spill segment " + segment.file);
+	}
+
+	/**
+	 * @return the record at the position , or null if there isn't a whole
+	 *         one with a matching checksum
+	 */
+	private byte[] read(ByteBuffer buffer, int position) {
+
+		if (position + RECORD_HEADER_SIZE > buffer.capacity())
+			return null;
+		int length = buffer.getInt(position);
+		if (length <= 0
+				|| length > buffer.capacity() - position - RECORD_HEADER_SIZE)
+			return null;
+		byte[] record = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(position + RECORD_HEADER_SIZE);
+		view.get(record);
+		crc.reset();
+		crc.update(record, 0, length);
+		if ((int) crc.getValue() != buffer.getInt(position + 4))
+			return null;
+		return record;
+	}
+
+	private void writeAt(ByteBuffer buffer, int position, byte[] record) {
+
+		crc.reset();
+		crc.update(record, 0, record.length);
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		view.putInt(record.length);
+		view.putInt((int) crc.getValue());
+		view.put(record);
+	}
+
+	private void write(Segment segment, byte[] record) {
+
+		writeAt(segment.buffer, segment.writePosition, record);
+		int end = segment.writePosition + RECORD_HEADER_SIZE + record.length;
+		// ends the records , over anything left by a write cut short
+		if (segment.buffer.capacity() - end >= 4)
+			segment.buffer.putInt(end, 0);
+		segment.writePosition = end;
+		segment.records++;
+		records++;
+	}
+
+	/**
+	 * Append a record to the tail of the queue
+	 *
+	 * @param record
+	 * @return false if there isn't room on disk for it
+	 * @throws IOException
+	 */
+	public boolean append(byte[] record) throws IOException {
+
+		int needed = RECORD_HEADER_SIZE + record.length;
+		Segment tail = segments.peekLast();
+		if (tail == null
+				|| tail.buffer.capacity() - tail.writePosition < needed) {
+			long length = Math.max(segmentSize, HEADER_SIZE + needed);
+			if (size + length > maxSize)
+				return false;
+			tail = create(tail == null ? 0 : tail.seq + 1, length);
+			segments.addLast(tail);
+		}
+		write(tail, record);
+		return true;
+	}
+
+	/**
+	 * Put records at the head of the queue , in their order. They are put
+	 * back from the last one , as many as fit under the disk cap.
+	 *
+	 * @param head
+	 * @return the number of records at the start of the list that didn't
+	 *         fit
+	 * @throws IOException
+	 */
+	public int prepend(List<byte[]> head) throws IOException {
+
+		int end = head.size();
+
+		// into the room the read records left at the front of the first
+		// segment , the cursor moves back over each one once it is written
+		Segment first = segments.peekFirst();
+		while (end > 0 && first != null) {
+			byte[] record = head.get(end - 1);
+			int position = first.readPosition - RECORD_HEADER_SIZE
+					- record.length;
+			if (position < HEADER_SIZE)
+				break;
+			writeAt(first.buffer, position, record);
+			first.readPosition = position;
+			first.buffer.putInt(4, position);
+			first.records++;
+			records++;
+			end--;
+		}
+
+		// then into new segments , filled in reverse , each gets the seq
+		// before the current first
+		while (end > 0) {
+			int start = end;
+			long length = HEADER_SIZE;
+			while (start > 0) {
+				long needed = RECORD_HEADER_SIZE + head.get(start - 1).length;
+				if ((start < end && length + needed > segmentSize)
+						|| size + length + needed > maxSize)
+					break;
+				length += needed;
+				start--;
+			}
+			// the next record doesn't fit under the cap
+			if (start == end)
+				break;
+			first = segments.peekFirst();
+			Segment segment = create(first == null ? 0 : first.seq - 1, length);
+			for (int i = start; i < end; i++) {
+				write(segment, head.get(i));
+			}
+			segments.addFirst(segment);
+			end = start;
+		}
+		return end;
+	}
+
+	/**
+	 * Take the record at the head of the queue
+	 *
+	 * @return the record , or null if the queue is empty
+	 */
+	public byte[] poll() {
+
+		while (!segments.isEmpty()) {
+			Segment head = segments.getFirst();
+			byte[] record = head.readPosition < head.writePosition ? read(
+					head.buffer, head.readPosition) : null;
+			if (record != null) {
+				head.readPosition += RECORD_HEADER_SIZE + record.length;
+				head.buffer.putInt(4, head.readPosition);
+				head.records--;
+				records--;
+				return record;
+			}
+			if (head.records > 0)
+				logger.error("Corrupt record in spill segment " + head.file
+						+ " , dropping " + head.records + " events");
+			delete(segments.removeFirst());
+		}
+		return null;
+	}
+
+	/**
+	 * Delete the oldest segment , and the records in it , to make room
+	 *
+	 * @return false if there are no segments
+	 */
+	public boolean dropOldest() {
+
+		if (segments.isEmpty())
+			return false;
+		delete(segments.removeFirst());
+		return true;
+	}
+
+	/**
+	 * Delete the newest segment , and the records in it , to make room. The
+	 * oldest segment is kept.
+	 *
+	 * @return false if there is only one segment , or none
+	 */
+	public boolean dropNewest() {
+
+		if (segments.size() < 2)
+			return false;
+		delete(segments.removeLast());
+		return true;
+	}
+
+	/**
+	 * Write the mapped segments through to disk
+	 */
+	public void force() {
+
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+	}
+
+	/**
+	 * Write the segments through to disk , release their mappings and unlock
+	 * the directory for the next queue. The queue can't be used afterwards.
+	 */
+	public void close() {
+
+		force();
+		for (Segment segment : segments) {
+			unmap(segment.buffer);
+		}
+		segments.clear();
+		records = 0;
+		size = 0;
+		unlock();
+	}
+
+	private void unlock() {
+
+		try {
+			lock.release();
+		} catch (IOException e) {
+		}
+		try {
+			lockFile.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Release a mapping now , it must not be used afterwards
+	 *
+	 * @param buffer
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			} else {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				Method clean = cleaner.getClass().getMethod("clean");
+				clean.setAccessible(true);
+				clean.invoke(cleaner);
+			}
+		} catch (Exception e) {
+			// left to the garbage collector
+		}
+	}
+
+	public boolean isEmpty() {
+		return records == 0;
+	}
+
+	/**
+	 * @return number of records in the queue
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return bytes of segment files on disk
+	 */
+	public long getSize() {
+		return size;
+	}
+
+}
@@ -0,0 +1,222 @@
+package com.splunk.javaagent.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed amount of direct memory , in segments , that encoded events are
+ * appended to and that is written to a non blocking channel with gathering
+ * writes.
+ *
+ * The segments form a ring , events are appended to the last one in use and
+ * every segment holding unwritten bytes is passed to a single write call.
+ * Segments are recycled once all of their bytes are written , a partial
+ * write just leaves the rest for the next write. An append that doesn't fit
+ * is refused rather than waiting for the channel.
+ *
+ * Not thread safe.
+ *
+ */
+public class GatheringWriteBuffer {
+
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	// position is the end of the appended bytes
+	private final ByteBuffer[] fill;
+	// views of the same memory , position is the end of the written bytes
+	private final ByteBuffer[] drain;
+	// the segments passed to a write , in ring order
+	private final ByteBuffer[] gather;
+	private final int segmentSize;
+
+	// ring of the segments in use , the last one is appended to
+	private int head;
+	private int used;
+	private long size;
+	// false if the head segment starts part way through a line whose start
+	// was in a segment that has been recycled
+	private boolean headAtLineStart = true;
+
+	/**
+	 * @param capacity
+	 *            bytes , rounded up to a whole number of 64KB segments
+	 */
+	public GatheringWriteBuffer(long capacity) {
+
+		this.segmentSize = (int) Math.max(Math.min(capacity, SEGMENT_SIZE),
+				1024);
+		int segments = (int) Math.max(1, (capacity + segmentSize - 1)
+				/ segmentSize);
+		this.fill = new ByteBuffer[segments];
+		this.drain = new ByteBuffer[segments];
+		this.gather = new ByteBuffer[segments];
+		for (int i = 0; i < segments; i++) {
+			fill[i] = ByteBuffer.allocateDirect(segmentSize);
+			drain[i] = fill[i].duplicate();
+		}
+	}
+
+	/**
+	 * @return bytes appended but not yet written
+	 */
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return true if at least one whole segment is waiting to be written
+	 */
+	public boolean hasFullSegment() {
+		return used > 1 || (used == 1 && !fill[head].hasRemaining());
+	}
+
+	private int free() {
+
+		int free = (fill.length - used) * segmentSize;
+		if (used > 0)
+			free += fill[(head + used - 1) % fill.length].remaining();
+		return free;
+	}
+
+	/**
+	 * Append all of the bytes or none of them
+	 *
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @return false if there isn't room
+	 */
+	public boolean append(byte[] b, int off, int len) {
+
+		if (len > free())
+			return false;
+		while (len > 0) {
+			ByteBuffer tail = used == 0 ? null : fill[(head + used - 1)
+					% fill.length];
+			if (tail == null || !tail.hasRemaining()) {
+				int next = (head + used) % fill.length;
+				fill[next].clear();
+				drain[next].clear();
+				used++;
+				tail = fill[next];
+			}
+			int chunk = Math.min(len, tail.remaining());
+			tail.put(b, off, chunk);
+			off += chunk;
+			len -= chunk;
+			size += chunk;
+		}
+		return true;
+	}
+
+	public boolean append(Utf8Buffer buffer) {
+		return append(buffer.array(), 0, buffer.size());
+	}
+
+	/**
+	 * Write as much as the channel will take without blocking
+	 *
+	 * @param channel
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	public long write(GatheringByteChannel channel) throws IOException {
+
+		if (size == 0)
+			return 0;
+		for (int i = 0; i < used; i++) {
+			int index = (head + i) % fill.length;
+			drain[index].limit(fill[index].position());
+			gather[i] = drain[index];
+		}
+		long written = channel.write(gather, 0, used);
+		size -= written;
+
+		// recycle the segments that have been written out
+		while (used > 0 && !drain[head].hasRemaining()
+				&& (used > 1 || size == 0)) {
+			int end = fill[head].position();
+			headAtLineStart = end == 0 || fill[head].get(end - 1) == '\n';
+			fill[head].clear();
+			drain[head].clear();
+			head = (head + 1) % fill.length;
+			used--;
+		}
+		if (used == 0) {
+			head = 0;
+			headAtLineStart = true;
+		}
+		return written;
+	}
+
+	/**
+	 * Take out everything that hasn't been written , after the channel
+	 * failed , as one event per line. It starts from the beginning of the
+	 * line the channel stopped in , if that is still held , so the line isn't
+	 * sent in pieces. If its beginning was in a segment that has been
+	 * recycled the rest of that line is dropped , it would only be resent as
+	 * a corrupt event.
+	 *
+	 * @return the events in order , empty if there are none
+	 */
+	public List<byte[]> takeUnwritten() {
+
+		List<byte[]> events = new ArrayList<byte[]>();
+		if (size == 0) {
+			clear();
+			return events;
+		}
+		ByteBuffer first = drain[head];
+		int start = first.position();
+		while (start > 0 && first.get(start - 1) != '\n')
+			start--;
+		// the fragment is skipped up to and including its '\n'
+		boolean fragment = start == 0 && !headAtLineStart;
+		if (!fragment)
+			first.position(start);
+
+		// events are split after each '\n' , the one that ends it included
+		Utf8Buffer event = new Utf8Buffer(1024);
+		for (int i = 0; i < used; i++) {
+			ByteBuffer segment = drain[(head + i) % fill.length];
+			segment.limit(fill[(head + i) % fill.length].position());
+			while (segment.hasRemaining()) {
+				byte b = segment.get();
+				if (fragment) {
+					fragment = b != '\n';
+					continue;
+				}
+				event.write(b);
+				if (b == '\n') {
+					events.add(event.toByteArray());
+					event.reset();
+				}
+			}
+		}
+		if (event.size() > 0)
+			events.add(event.toByteArray());
+		clear();
+		return events;
+	}
+
+	private void clear() {
+
+		for (int i = 0; i < fill.length; i++) {
+			fill[i].clear();
+			drain[i].clear();
+			gather[i] = null;
+		}
+		head = 0;
+		used = 0;
+		size = 0;
+		headAtLineStart = true;
+	}
+
+}
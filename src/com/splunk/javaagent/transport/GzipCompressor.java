@@ -0,0 +1,84 @@
+package com.splunk.javaagent.transport;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression for HTTP payloads that reuses its Deflater and buffers
+ * across calls rather than creating a GZIPOutputStream per payload.
+ *
+ * Thread safe , calls are serialized.
+ *
+ */
+public class GzipCompressor {
+
+	private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED,
+			0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final int level;
+	private final Deflater deflater;
+	private final CRC32 crc = new CRC32();
+	private final Utf8Buffer out = new Utf8Buffer(64 * 1024);
+	private final byte[] chunk = new byte[8192];
+	private boolean ended = false;
+
+	/**
+	 * @param level
+	 *            0-9 , or -1 for the default level
+	 */
+	public GzipCompressor(int level) {
+		this.level = level;
+		this.deflater = new Deflater(level, true);
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param content
+	 * @return the content in gzip format , or null once the compressor has
+	 *         been ended
+	 */
+	public synchronized byte[] compress(byte[] content) {
+
+		if (ended)
+			return null;
+
+		out.reset();
+		out.write(HEADER);
+
+		deflater.reset();
+		deflater.setInput(content);
+		deflater.finish();
+		while (!deflater.finished()) {
+			int length = deflater.deflate(chunk);
+			out.write(chunk, 0, length);
+		}
+
+		crc.reset();
+		crc.update(content, 0, content.length);
+		writeInt(out, (int) crc.getValue());
+		writeInt(out, content.length);
+		return out.toByteArray();
+	}
+
+	// little endian , as gzip wants
+	private static void writeInt(Utf8Buffer buffer, int value) {
+
+		buffer.write(value).write(value >> 8).write(value >> 16)
+				.write(value >> 24);
+	}
+
+	/**
+	 * Release the native memory held by the Deflater , later calls to
+	 * compress return null
+	 */
+	public synchronized void end() {
+		if (ended)
+			return;
+		ended = true;
+		deflater.end();
+	}
+
+}
@@ -0,0 +1,105 @@
+package com.splunk.javaagent.transport;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Accumulates encoded events into a batch for HEC.
+ *
+ * One thread , the transporter , encodes events straight into the batch
+ * buffer. A flush , by the transporter when the batch is full or by the idle
+ * flush task when events stop arriving , swaps in the empty spare buffer and
+ * copies the full one out once , after letting go of the lock. The lock is
+ * only held for one append or one swap , so an append and a flush never see
+ * the same buffer at the same time and no event is lost or sent twice.
+ *
+ * The two buffers are reused for the life of the transport.
+ *
+ */
+public class HECBatchAccumulator {
+
+	static class Batch {
+
+		final Utf8Buffer buffer = new Utf8Buffer(64 * 1024);
+		int events;
+	}
+
+	// guards current
+	private final ReentrantLock lock = new ReentrantLock();
+	private Batch current = new Batch();
+	// only used by drain , which is synchronized
+	private Batch spare = new Batch();
+
+	// only used by the appending thread
+	private int lastSize;
+	private int lastEvents;
+
+	/**
+	 * Take the batch buffer to encode an event into , must be followed by
+	 * {@link #endAppend(boolean)}. Only one thread may append.
+	 *
+	 * @return
+	 */
+	public Utf8Buffer beginAppend() {
+
+		lock.lock();
+		return current.buffer;
+	}
+
+	/**
+	 * Give the batch buffer back
+	 *
+	 * @param appended
+	 *            true if an event was written to it
+	 */
+	public void endAppend(boolean appended) {
+
+		try {
+			if (appended)
+				current.events++;
+			lastSize = current.buffer.size();
+			lastEvents = current.events;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return size in bytes of the batch as of the last append
+	 */
+	public int size() {
+		return lastSize;
+	}
+
+	/**
+	 * @return number of events in the batch as of the last append
+	 */
+	public int events() {
+		return lastEvents;
+	}
+
+	/**
+	 * Swap the batch for an empty one
+	 *
+	 * @return the batch's content , or null if it was empty
+	 */
+	public synchronized byte[] drain() {
+
+		Batch full;
+		lock.lock();
+		try {
+			full = current;
+			if (full.events == 0)
+				return null;
+			current = spare;
+		} finally {
+			lock.unlock();
+		}
+
+		byte[] content = full.buffer.toByteArray();
+		full.buffer.reset();
+		full.events = 0;
+		spare = full;
+		return content;
+	}
+
+}
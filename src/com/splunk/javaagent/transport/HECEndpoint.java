@@ -0,0 +1,175 @@
+package com.splunk.javaagent.transport;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One HEC host:port that the {@link SplunkHECTransport} posts to , along with
+ * what the transport knows about it : posts in flight , response latency ,
+ * health , backoff and the posts waiting to be acknowledged by it.
+ *
+ * An endpoint is ejected after a run of failed posts and is only posted to
+ * again once a health probe succeeds.
+ *
+ */
+public class HECEndpoint {
+
+	// backoff when HEC doesn't say how long to wait with Retry-After
+	static final long MIN_BACKOFF = 1000;
+	static final long MAX_BACKOFF = 60000;
+
+	private final String host;
+	private final int port;
+
+	// built by the transport on (re)start
+	volatile URI uri;
+	volatile URI ackUri;
+	volatile URI healthUri;
+
+	// ackIds are per channel per indexer , so are tracked per endpoint
+	final Map<Long, SplunkHECTransport.PendingAck> pendingAcks = new ConcurrentHashMap<Long, SplunkHECTransport.PendingAck>();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	// moving average of the response time in millis , 0 until measured
+	private volatile double latency;
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile boolean healthy = true;
+
+	// while HEC is shedding load(429 , 503) nothing is posted to it
+	private volatile long backoffUntil;
+	private volatile long nextBackoff = MIN_BACKOFF;
+
+	public HECEndpoint(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * @param hosts
+	 *            comma delimited list of host or host:port
+	 * @param defaultPort
+	 *            for the hosts without a port
+	 * @return
+	 */
+	public static HECEndpoint[] parse(String hosts, int defaultPort) {
+
+		String[] entries = hosts.split(",");
+		int count = 0;
+		HECEndpoint[] endpoints = new HECEndpoint[entries.length];
+		for (String entry : entries) {
+			entry = entry.trim();
+			if (entry.length() == 0)
+				continue;
+			int colon = entry.lastIndexOf(':');
+			if (colon > 0) {
+				endpoints[count++] = new HECEndpoint(
+						entry.substring(0, colon), Integer.parseInt(entry
+								.substring(colon + 1)));
+			} else {
+				endpoints[count++] = new HECEndpoint(entry, defaultPort);
+			}
+		}
+		HECEndpoint[] result = new HECEndpoint[count];
+		System.arraycopy(endpoints, 0, result, 0, count);
+		return result;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * Healthy and not backing off
+	 * 
+	 * @param now
+	 * @return
+	 */
+	public boolean isAvailable(long now) {
+		return healthy && now >= backoffUntil;
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public double getLatency() {
+		return latency;
+	}
+
+	void postStarted() {
+		inFlight.incrementAndGet();
+	}
+
+	void postFinished() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * @param millis
+	 *            response time of the post
+	 */
+	void succeeded(long millis) {
+
+		consecutiveFailures.set(0);
+		nextBackoff = MIN_BACKOFF;
+		double current = latency;
+		latency = current == 0 ? millis : current * 0.8 + millis * 0.2;
+	}
+
+	/**
+	 * @param threshold
+	 *            number of failures in a row that eject the endpoint
+	 * @return true if this failure ejected it
+	 */
+	boolean failed(int threshold) {
+
+		if (consecutiveFailures.incrementAndGet() >= threshold && healthy) {
+			healthy = false;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Back to taking posts after a successful health probe
+	 */
+	void readmit() {
+
+		consecutiveFailures.set(0);
+		latency = 0;
+		healthy = true;
+	}
+
+	/**
+	 * Stop posting until the time HEC asked for , or failing that an
+	 * exponentially increasing delay , has passed
+	 * 
+	 * @param retryAfterMillis
+	 *            0 if HEC didn't say
+	 */
+	void backOff(long retryAfterMillis) {
+
+		long delay = retryAfterMillis;
+		if (delay <= 0) {
+			delay = nextBackoff;
+			nextBackoff = Math.min(nextBackoff * 2, MAX_BACKOFF);
+		}
+		backoffUntil = System.currentTimeMillis() + delay;
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + port;
+	}
+
+}
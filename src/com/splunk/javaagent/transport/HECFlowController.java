@@ -0,0 +1,211 @@
+package com.splunk.javaagent.transport;
+
+/**
+ * Limits the number of HEC posts in flight and sets the batch size.
+ *
+ * When fixed the limit is maxInFlight and the batch size is the configured
+ * max. When adaptive both start at their minimum and are adjusted once a
+ * second from the responses seen in that second , additive increase ,
+ * multiplicative decrease :
+ *
+ * <ul>
+ * <li>any 429 , 503 , 5xx or failed post halves the limit and the batch size
+ * </li>
+ * <li>otherwise , if latency is flat and posts are backing up(the queue holds
+ * events or posts had to wait for a slot) the limit goes up by one and the
+ * batch size by a sixteenth of the max</li>
+ * <li>otherwise nothing changes</li>
+ * </ul>
+ *
+ * Latency is flat while the second's average is within 1.5x(or 5ms) of the
+ * lowest average seen , which drifts towards the current average so that it
+ * follows lasting changes.
+ *
+ */
+public class HECFlowController {
+
+	private static final long WINDOW = 1000;
+	private static final int BATCH_STEPS = 16;
+
+	private final boolean adaptive;
+	private final int minLimit;
+	private final int maxLimit;
+	private final long minBatchSizeBytes;
+	private final long maxBatchSizeBytes;
+	private final long maxBatchSizeEvents;
+
+	private int limit;
+	private int inUse;
+	private volatile long batchSizeBytes;
+	private volatile long batchSizeEvents;
+
+	// the current window
+	private long windowStart = System.currentTimeMillis();
+	private int responses;
+	private long latencyTotal;
+	private int overloads;
+	private boolean saturated;
+	private double baseline;
+
+	/**
+	 * @param adaptive
+	 * @param minLimit
+	 * @param maxLimit
+	 *            bounds for the number of posts in flight
+	 * @param minBatchSizeBytes
+	 * @param maxBatchSizeBytes
+	 *            bounds for the batch size
+	 * @param maxBatchSizeEvents
+	 *            scaled down along with the batch size
+	 * @param previous
+	 *            the controller this one replaces on a restart , what it
+	 *            learned is carried over. May be null.
+	 */
+	public HECFlowController(boolean adaptive, int minLimit, int maxLimit,
+			long minBatchSizeBytes, long maxBatchSizeBytes,
+			long maxBatchSizeEvents, HECFlowController previous) {
+
+		this.adaptive = adaptive;
+		this.maxLimit = Math.max(maxLimit, 1);
+		this.minLimit = Math.max(Math.min(minLimit, this.maxLimit), 1);
+		this.maxBatchSizeBytes = Math.max(maxBatchSizeBytes, 1);
+		this.minBatchSizeBytes = Math.max(
+				Math.min(minBatchSizeBytes, this.maxBatchSizeBytes), 1);
+		this.maxBatchSizeEvents = Math.max(maxBatchSizeEvents, 1);
+
+		if (!adaptive) {
+			this.limit = this.maxLimit;
+			setBatchSizeBytes(this.maxBatchSizeBytes);
+		} else if (previous != null && previous.adaptive) {
+			this.limit = clamp(previous.getLimit(), this.minLimit,
+					this.maxLimit);
+			setBatchSizeBytes(clamp(previous.getBatchSizeBytes(),
+					this.minBatchSizeBytes, this.maxBatchSizeBytes));
+			this.baseline = previous.getBaseline();
+		} else {
+			this.limit = this.minLimit;
+			setBatchSizeBytes(this.minBatchSizeBytes);
+		}
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private static long clamp(long value, long min, long max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private void setBatchSizeBytes(long bytes) {
+
+		this.batchSizeBytes = bytes;
+		this.batchSizeEvents = Math.max(1, maxBatchSizeEvents * bytes
+				/ maxBatchSizeBytes);
+	}
+
+	/**
+	 * Wait for a slot for a post
+	 *
+	 * @param timeoutMillis
+	 * @return false if no slot came free in time
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean acquire(long timeoutMillis)
+			throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (inUse >= limit) {
+			saturated = true;
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		inUse++;
+		return true;
+	}
+
+	/**
+	 * Give back the slot of a post that got a response or failed
+	 */
+	public synchronized void release() {
+
+		inUse--;
+		notifyAll();
+	}
+
+	/**
+	 * @param millis
+	 *            response time of a post that HEC accepted
+	 * @param backlog
+	 *            true if there are events waiting on the queue
+	 */
+	public synchronized void succeeded(long millis, boolean backlog) {
+
+		responses++;
+		latencyTotal += millis;
+		adjust(backlog);
+	}
+
+	/**
+	 * A post was refused because HEC is overloaded or unavailable , or got
+	 * no response
+	 */
+	public synchronized void overloaded() {
+
+		overloads++;
+		adjust(false);
+	}
+
+	private void adjust(boolean backlog) {
+
+		long now = System.currentTimeMillis();
+		if (!adaptive || now - windowStart < WINDOW)
+			return;
+
+		if (overloads > 0) {
+			limit = Math.max(minLimit, limit / 2);
+			setBatchSizeBytes(Math.max(minBatchSizeBytes, batchSizeBytes / 2));
+		} else if (responses > 0) {
+			double average = (double) latencyTotal / responses;
+			if (baseline == 0 || average < baseline)
+				baseline = average;
+			else
+				baseline += (average - baseline) * 0.05;
+
+			boolean flat = average <= Math.max(baseline * 1.5,
+					baseline + 5);
+			if (flat && (backlog || saturated)) {
+				if (limit < maxLimit) {
+					limit++;
+					notifyAll();
+				}
+				setBatchSizeBytes(Math.min(maxBatchSizeBytes, batchSizeBytes
+						+ Math.max(1, maxBatchSizeBytes / BATCH_STEPS)));
+			}
+		}
+
+		windowStart = now;
+		responses = 0;
+		latencyTotal = 0;
+		overloads = 0;
+		saturated = false;
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	public synchronized double getBaseline() {
+		return baseline;
+	}
+
+	public long getBatchSizeBytes() {
+		return batchSizeBytes;
+	}
+
+	public long getBatchSizeEvents() {
+		return batchSizeEvents;
+	}
+
+}
@@ -0,0 +1,265 @@
+package com.splunk.javaagent.transport;
+
+import com.splunk.javaagent.SplunkLogEvent;
+
+/**
+ * Encodes events as HEC JSON straight into a {@link Utf8Buffer}.
+ *
+ * <pre>
+ * {"time":1440000000.123,"event":"...","index":"main","source":"...","sourcetype":"..."}
+ * </pre>
+ *
+ * Events with numeric values can also be encoded in the HEC multi-metric
+ * format for a metrics index , the numeric pairs become measures named
+ * after the event name and key , every other pair becomes a dimension.
+ *
+ * <pre>
+ * {"time":1440000000.123,"event":"metric","index":"metrics",...,"fields":{"appName":"myapp","metric_name:agent_stats.classesTransformed":120}}
+ * </pre>
+ *
+ * The part of the envelope that is the same for every event is encoded once
+ * when the encoder is created. The time is the event's own creation time so
+ * events that were queued or batched are still indexed at the right time.
+ *
+ */
+public class HECJsonEncoder {
+
+	private static final byte[] TIME = ascii("{\"time\":");
+	private static final byte[] EVENT = ascii(",\"event\":\"");
+	private static final byte[] METRIC_EVENT = ascii(",\"event\":\"metric\"");
+	private static final byte[] FIELDS = ascii(",\"fields\":{");
+	private static final byte[] METRIC_NAME = ascii("\"metric_name:");
+
+	// these pairs are already part of the metric name
+	private static final String NAME_KEY = "name";
+	private static final String EVENT_ID_KEY = "event_id";
+
+	// ","index":"main","source":"...","sourcetype":"..."}
+	private final byte[] envelopeSuffix;
+	// ,"index":"metrics","source":"...","sourcetype":"..."
+	private final byte[] metricEnvelope;
+
+	/**
+	 * @param index
+	 * @param source
+	 * @param sourcetype
+	 *            any of these may be null , in which case they are left out
+	 *            and HEC applies the token's defaults
+	 */
+	public HECJsonEncoder(String index, String source, String sourcetype) {
+		this(index, source, sourcetype, index);
+	}
+
+	/**
+	 * @param index
+	 * @param source
+	 * @param sourcetype
+	 * @param metricsIndex
+	 *            index for events encoded as metrics
+	 */
+	public HECJsonEncoder(String index, String source, String sourcetype,
+			String metricsIndex) {
+
+		Utf8Buffer suffix = new Utf8Buffer(256);
+		suffix.write('"');
+		appendField(suffix, "index", index);
+		appendField(suffix, "source", source);
+		appendField(suffix, "sourcetype", sourcetype);
+		suffix.write('}');
+		this.envelopeSuffix = suffix.toByteArray();
+
+		Utf8Buffer metric = new Utf8Buffer(256);
+		appendField(metric, "index", metricsIndex);
+		appendField(metric, "source", source);
+		appendField(metric, "sourcetype", sourcetype);
+		this.metricEnvelope = metric.toByteArray();
+	}
+
+	private static void appendField(Utf8Buffer buffer, String name,
+			String value) {
+
+		if (value == null)
+			return;
+		buffer.write(',').write('"').append(name).write('"').write(':')
+				.write('"');
+		buffer.appendJsonEscaped(value, 0, value.length()).write('"');
+	}
+
+	private static byte[] ascii(String value) {
+
+		Utf8Buffer buffer = new Utf8Buffer(value.length());
+		return buffer.append(value).toByteArray();
+	}
+
+	private static void appendTime(SplunkLogEvent event, Utf8Buffer out) {
+
+		long timestamp = event.getTimestamp();
+		out.write(TIME).append(timestamp / 1000).write('.');
+		int millis = (int) (timestamp % 1000);
+		out.write('0' + millis / 100).write('0' + (millis / 10) % 10)
+				.write('0' + millis % 10);
+	}
+
+	/**
+	 * Append an event to the buffer
+	 *
+	 * @param event
+	 * @param out
+	 */
+	public void encode(SplunkLogEvent event, Utf8Buffer out) {
+
+		appendTime(event, out);
+		out.write(EVENT).appendJsonEscaped(event);
+		out.write(envelopeSuffix);
+	}
+
+	/**
+	 * Append an event to the buffer as a multi-metric event
+	 *
+	 * @param event
+	 * @param out
+	 * @return false if the event has no numeric values , in which case
+	 *         nothing is written
+	 */
+	public boolean encodeMetrics(SplunkLogEvent event, Utf8Buffer out) {
+
+		int start = out.size();
+		String metricPrefix = null;
+		for (int i = 0; i < event.size(); i++) {
+			if (NAME_KEY.equals(event.getKey(i))) {
+				metricPrefix = event.getStringValue(i);
+				break;
+			}
+		}
+
+		appendTime(event, out);
+		out.write(METRIC_EVENT).write(metricEnvelope).write(FIELDS);
+
+		boolean first = true;
+		int measures = 0;
+		for (int i = 0; i < event.size(); i++) {
+			SplunkLogEvent.RenderedPairs rendered = event.getRenderedPairs(i);
+			if (rendered != null) {
+				for (int j = 0; j < rendered.size(); j++) {
+					first = appendDimension(out, first, rendered.getKey(j),
+							rendered.getValue(j));
+				}
+				continue;
+			}
+			String key = event.getKey(i);
+			if (key == null || NAME_KEY.equals(key)
+					|| EVENT_ID_KEY.equals(key))
+				continue;
+
+			if (event.isLong(i)) {
+				first = appendMeasureName(out, first, metricPrefix, key);
+				out.append(event.getLongValue(i));
+				measures++;
+			} else if (event.isDouble(i)) {
+				double value = event.getDoubleValue(i);
+				// not representable in JSON
+				if (Double.isNaN(value) || Double.isInfinite(value))
+					continue;
+				first = appendMeasureName(out, first, metricPrefix, key);
+				out.append(String.valueOf(value));
+				measures++;
+			} else {
+				String value = event.getStringValue(i);
+				if (value == null)
+					continue;
+				if (isJsonNumber(value)) {
+					first = appendMeasureName(out, first, metricPrefix, key);
+					out.append(value);
+					measures++;
+				} else {
+					first = appendDimension(out, first, key, value);
+				}
+			}
+		}
+
+		if (measures == 0) {
+			out.truncate(start);
+			return false;
+		}
+		out.write('}').write('}');
+		return true;
+	}
+
+	private static boolean appendDimension(Utf8Buffer out, boolean first,
+			String key, String value) {
+
+		if (value == null)
+			return first;
+		if (!first)
+			out.write(',');
+		out.write('"').appendJsonEscaped(key, 0, key.length()).write('"')
+				.write(':').write('"');
+		out.appendJsonEscaped(value, 0, value.length()).write('"');
+		return false;
+	}
+
+	private static boolean appendMeasureName(Utf8Buffer out, boolean first,
+			String metricPrefix, String key) {
+
+		if (!first)
+			out.write(',');
+		out.write(METRIC_NAME);
+		if (metricPrefix != null) {
+			out.appendJsonEscaped(metricPrefix, 0, metricPrefix.length());
+			out.write('.');
+		}
+		out.appendJsonEscaped(key, 0, key.length()).write('"').write(':');
+		return false;
+	}
+
+	/**
+	 * True if the value can be written as is as a JSON number
+	 *
+	 * @param value
+	 * @return
+	 */
+	static boolean isJsonNumber(String value) {
+
+		int length = value.length();
+		int i = 0;
+		if (i < length && value.charAt(i) == '-')
+			i++;
+		if (i == length)
+			return false;
+		// no leading zeros , "007" is an ID not a number
+		if (value.charAt(i) == '0') {
+			i++;
+		} else {
+			int digits = i;
+			while (i < length && isDigit(value.charAt(i)))
+				i++;
+			if (i == digits)
+				return false;
+		}
+		if (i < length && value.charAt(i) == '.') {
+			i++;
+			int digits = i;
+			while (i < length && isDigit(value.charAt(i)))
+				i++;
+			if (i == digits)
+				return false;
+		}
+		if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+			i++;
+			if (i < length
+					&& (value.charAt(i) == '+' || value.charAt(i) == '-'))
+				i++;
+			int digits = i;
+			while (i < length && isDigit(value.charAt(i)))
+				i++;
+			if (i == digits)
+				return false;
+		}
+		return i == length;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.splunk.javaagent.transport;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks which of the available HEC endpoints a post goes to.
+ *
+ * <ul>
+ * <li>roundRobin : each in turn</li>
+ * <li>leastInFlight : the one with the fewest posts awaiting a response</li>
+ * <li>latency : the one with the lowest response time , weighted by the
+ * posts it already has in flight</li>
+ * </ul>
+ *
+ * Ties and unmeasured endpoints are broken round robin so that load still
+ * spreads while the measurements settle.
+ *
+ */
+public abstract class HECLoadBalancer {
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * @param policy
+	 *            roundRobin | leastInFlight | latency
+	 * @return the balancer , round robin if the policy isn't known
+	 */
+	public static HECLoadBalancer create(String policy) {
+
+		if ("leastInFlight".equalsIgnoreCase(policy))
+			return new LeastInFlight();
+		if ("latency".equalsIgnoreCase(policy))
+			return new Latency();
+		return new RoundRobin();
+	}
+
+	/**
+	 * @param endpoints
+	 * @return the endpoint to post to , or null if none are available
+	 */
+	public HECEndpoint select(HECEndpoint[] endpoints) {
+
+		long now = System.currentTimeMillis();
+		int start = (next.getAndIncrement() & Integer.MAX_VALUE)
+				% endpoints.length;
+		HECEndpoint best = null;
+		double bestScore = Double.MAX_VALUE;
+		for (int i = 0; i < endpoints.length; i++) {
+			HECEndpoint endpoint = endpoints[(start + i) % endpoints.length];
+			if (!endpoint.isAvailable(now))
+				continue;
+			double score = score(endpoint);
+			if (score < bestScore) {
+				best = endpoint;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param endpoint
+	 * @return lower is better
+	 */
+	protected abstract double score(HECEndpoint endpoint);
+
+	public abstract String getPolicy();
+
+	static class RoundRobin extends HECLoadBalancer {
+
+		@Override
+		protected double score(HECEndpoint endpoint) {
+			return 0;
+		}
+
+		@Override
+		public String getPolicy() {
+			return "roundRobin";
+		}
+	}
+
+	static class LeastInFlight extends HECLoadBalancer {
+
+		@Override
+		protected double score(HECEndpoint endpoint) {
+			return endpoint.getInFlight();
+		}
+
+		@Override
+		public String getPolicy() {
+			return "leastInFlight";
+		}
+	}
+
+	static class Latency extends HECLoadBalancer {
+
+		@Override
+		protected double score(HECEndpoint endpoint) {
+			return endpoint.getLatency() * (endpoint.getInFlight() + 1);
+		}
+
+		@Override
+		public String getPolicy() {
+			return "latency";
+		}
+	}
+
+}
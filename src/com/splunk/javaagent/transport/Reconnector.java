@@ -0,0 +1,168 @@
+package com.splunk.javaagent.transport;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reconnects a transport on a background scheduler rather than on the thread
+ * that hit the error , so the transporter keeps queuing events while the
+ * connection is down.
+ *
+ * The first attempt after an error is made straight away , so a transport
+ * with several hosts fails over without delay. After that attempts back off
+ * exponentially from the initial delay to the max delay , each one waiting a
+ * random time between half and all of the current delay so that a fleet of
+ * agents that lost the same indexer don't all come back at once. Only one
+ * attempt is scheduled at a time , however many errors ask for one. Once
+ * cancelled , when the transport is stopped , no attempts are made until it is
+ * reset.
+ *
+ */
+public class Reconnector {
+
+	private static Logger logger = Logger.getLogger(Reconnector.class);
+
+	/**
+	 * What a reconnect attempt does
+	 */
+	public interface Connection {
+
+		/**
+		 * @throws Exception
+		 *             if the attempt failed and another should be made
+		 */
+		void reconnect() throws Exception;
+	}
+
+	private final String name;
+	private final Connection connection;
+	private final ScheduledExecutorService scheduler;
+	private final long initialDelay;
+	private final long maxDelay;
+
+	private final Random random = new Random();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile long delay;
+	private volatile int attempts;
+	private volatile boolean cancelled;
+	private volatile ScheduledFuture<?> pending;
+
+	private final Runnable attempt = new Runnable() {
+		public void run() {
+			attempt();
+		}
+	};
+
+	/**
+	 * @param name
+	 *            for logging
+	 * @param connection
+	 * @param scheduler
+	 *            runs the attempts
+	 * @param initialDelay
+	 *            millis
+	 * @param maxDelay
+	 *            millis
+	 */
+	public Reconnector(String name, Connection connection,
+			ScheduledExecutorService scheduler, long initialDelay,
+			long maxDelay) {
+
+		this.name = name;
+		this.connection = connection;
+		this.scheduler = scheduler;
+		this.initialDelay = Math.max(initialDelay, 1);
+		this.maxDelay = Math.max(maxDelay, this.initialDelay);
+		this.delay = this.initialDelay;
+	}
+
+	/**
+	 * Schedule an attempt unless one is already scheduled
+	 */
+	public void reconnectLater() {
+
+		if (cancelled || !scheduled.compareAndSet(false, true))
+			return;
+		long wait = 0;
+		if (attempts > 0) {
+			long current = delay;
+			wait = current / 2 + (long) (random.nextDouble() * (current / 2));
+			delay = Math.min(current * 2, maxDelay);
+		}
+		ScheduledFuture<?> future;
+		try {
+			future = scheduler.schedule(attempt, wait, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the transport has been closed
+			scheduled.set(false);
+			return;
+		}
+		pending = future;
+		// cancelled while scheduling
+		if (cancelled) {
+			future.cancel(false);
+			scheduled.set(false);
+			return;
+		}
+		logger.info("Reconnecting " + name + " in " + wait + "ms");
+	}
+
+	private void attempt() {
+
+		scheduled.set(false);
+		if (cancelled)
+			return;
+		int attempt = ++attempts;
+		try {
+			connection.reconnect();
+			logger.info("Reconnected " + name + " after " + attempt
+					+ " attempts");
+			connected();
+		} catch (Exception e) {
+			logger.error("Error reconnecting " + name + " : "
+					+ e.getMessage());
+			reconnectLater();
+		}
+	}
+
+	/**
+	 * The connection is up , the next outage starts from the initial delay
+	 */
+	public void connected() {
+
+		delay = initialDelay;
+		attempts = 0;
+	}
+
+	/**
+	 * Cancel the attempt that is scheduled , none are made until reset()
+	 */
+	public void cancel() {
+
+		cancelled = true;
+		ScheduledFuture<?> future = pending;
+		if (future != null)
+			future.cancel(false);
+		scheduled.set(false);
+	}
+
+	/**
+	 * Allow attempts again , starting from the initial delay
+	 */
+	public void reset() {
+
+		cancelled = false;
+		connected();
+	}
+
+	public boolean isReconnecting() {
+		return scheduled.get();
+	}
+
+}
@@ -1,41 +1,58 @@
 package com.splunk.javaagent.transport;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
 
-import org.apache.http.HttpHost;
+import org.apache.http.Header;
 import org.apache.http.HttpResponse;
 
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
 import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
 import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.nio.conn.NoopIOSessionStrategy;
 import org.apache.http.nio.conn.SchemeIOSessionStrategy;
 import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
 import org.apache.http.nio.reactor.ConnectingIOReactor;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.http.ssl.TrustStrategy;
+import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 
+import com.splunk.javaagent.OverheadGovernor;
 import com.splunk.javaagent.SplunkLogEvent;
 import com.splunk.javaagent.jmx.mbean.HECTransportMXBean;
 
@@ -46,25 +63,131 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 
 	private String host = "localhost";
 	private int port = 8088;
+	// comma delimited host:port list , if set it replaces host and port
+	private String hosts;
+	private String loadBalancing = "roundRobin";
+	// failed posts in a row that eject an endpoint until a health probe
+	// succeeds
+	private int failureThreshold = 3;
+	private long healthCheckInterval = 10000;
+	// a failed client is rebuilt in the background , backing off from
+	// reconnectDelay to reconnectMaxDelay
+	private long reconnectDelay = 1000;
+	private long reconnectMaxDelay = 60000;
+	private Reconnector reconnector;
+	// set by stop() , a stopped transport isn't rebuilt by the reconnector
+	private volatile boolean stopped = false;
+	private final Object lifecycleLock = new Object();
+
+	private volatile HECEndpoint[] endpoints;
+	// the hosts the endpoints were built from
+	private String endpointsSpec;
+	private volatile HECLoadBalancer balancer;
+	private HealthCheckerThread healthChecker;
 	private boolean https = false;
 	private int poolsize = 1;
+	// max number of posts awaiting a response , 0 means the pool size
+	private int maxInFlight = 0;
+	// adapt the posts in flight and the batch size to how HEC is coping ,
+	// between the min and max settings
+	private boolean adaptive = false;
+	private int minInFlight = 1;
+	private long minBatchSizeBytes = 64 * KB;
+	private volatile HECFlowController flow;
 	private String token;
 	private String index = "main";
 	private String source = "javaagent_input_hec";
 	private String sourcetype = "javaagent";
 
+	// post newline delimited event text to the raw endpoint instead of JSON
+	// to the event endpoint
+	private boolean raw = false;
+	// identifies this agent's posts to HEC , one per transport
+	private String channel = UUID.randomUUID().toString();
+
+	// indexer acknowledgement , posts are kept until HEC confirms they were
+	// indexed and are retried if that doesn't happen within ackTimeout
+	private boolean ack = false;
+	private long ackPollInterval = 1000;
+	private long ackTimeout = 60000;
+	private AckPollerThread ackPoller;
+
+	// events with these names are sent as multi-metric events
+	private boolean metrics = false;
+	private String metricsIndex;
+	private Set<String> metricEvents = new HashSet<String>();
+
+	// gzip the posts that are at least gzipMinBytes long
+	private boolean gzip = false;
+	private int gzipLevel = -1;
+	private int gzipMinBytes = 1024;
+	private volatile GzipCompressor compressor;
+
 	private boolean batchMode = false;
 	private long maxBatchSizeBytes = 1 * MB; // 1MB
 	private long maxBatchSizeEvents = 100; // 100 events
 	private long maxInactiveTimeBeforeBatchFlush = 5000;// 5 secs
 
-	// batch buffer
-	private List<String> batchBuffer;
-	private long currentBatchSizeBytes = 0;
-	private long lastEventReceivedTime;
+	private static final ContentType JSON = ContentType.create(
+			"application/json", "UTF-8");
+	private static final ContentType TEXT = ContentType.create(
+			"text/plain", "UTF-8");
+
+	// a post that gets no response is failed and retried rather than holding
+	// an in flight slot forever
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int SOCKET_TIMEOUT = 30000;
+	// a post in flight longer than this has lost its callback , the client
+	// is rebuilt rather than waiting on it for good
+	private static final int SLOT_TIMEOUT = CONNECT_TIMEOUT + SOCKET_TIMEOUT;
+
+	private static final Pattern ACK_ID = Pattern
+			.compile("\"ackId\"\\s*:\\s*(\\d+)");
+	private static final Pattern ACK_STATUS = Pattern
+			.compile("\"(\\d+)\"\\s*:\\s*(true|false)");
+
+	// the current event , encoded as UTF-8
+	private final Utf8Buffer message = new Utf8Buffer();
+	// rebuilt when the index , source or sourcetype change
+	private volatile HECJsonEncoder encoder;
+
+	// events are encoded straight into the batch by the transporter thread ,
+	// the flush task swaps it out when events stop arriving
+	private final HECBatchAccumulator batch = new HECBatchAccumulator();
+	private volatile long lastEventReceivedTime;
+
+	// flushes the batch and posts the queue once the transport has been idle
+	// for maxInactiveTimeBeforeBatchFlush , only scheduled while there is
+	// something to flush
+	private ScheduledExecutorService scheduler;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			idleFlush();
+		}
+	};
+
+	// swapped by the reconnector while the transporter and flusher post
+	private volatile CloseableHttpAsyncClient httpClient;
+
+	// names the IO dispatcher threads so they count towards agent overhead
+	private static final ThreadFactory IO_THREAD_FACTORY = new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
 
-	private CloseableHttpAsyncClient httpClient;
-	private URI uri;
+		public Thread newThread(Runnable r) {
+			return new Thread(r, OverheadGovernor.AGENT_THREAD_PREFIX
+					+ "hec-io-" + count.incrementAndGet());
+		}
+	};
+
+	private static final ThreadFactory FLUSHER_THREAD_FACTORY = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, OverheadGovernor.AGENT_THREAD_PREFIX
+					+ "hec-flusher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
 
 	private static final HostnameVerifier HOSTNAME_VERIFIER = new HostnameVerifier() {
 		public boolean verify(String s, SSLSession sslSession) {
@@ -89,6 +212,45 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 			setPort(Integer.parseInt(args.get("splunk.transport.hec.port")));
 		} catch (Exception e) {
 
+		}
+		try {
+			String hostsProperty = args.get("splunk.transport.hec.hosts");
+			if (hostsProperty != null && hostsProperty.trim().length() > 0)
+				setHosts(hostsProperty);
+		} catch (Exception e) {
+
+		}
+		try {
+			String loadBalancingProperty = args
+					.get("splunk.transport.hec.loadBalancing");
+			if (loadBalancingProperty != null)
+				setLoadBalancing(loadBalancingProperty);
+		} catch (Exception e) {
+
+		}
+		try {
+			setFailureThreshold(Integer.parseInt(args
+					.get("splunk.transport.hec.failureThreshold")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setHealthCheckInterval(Long.parseLong(args
+					.get("splunk.transport.hec.healthCheckInterval")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setReconnectDelay(Long.parseLong(args
+					.get("splunk.transport.hec.reconnectDelay")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setReconnectMaxDelay(Long.parseLong(args
+					.get("splunk.transport.hec.reconnectMaxDelay")));
+		} catch (Exception e) {
+
 		}
 		try {
 			setPoolSize(Integer.parseInt(args
@@ -97,6 +259,32 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 
 		}
 
+		try {
+			setMaxInFlight(Integer.parseInt(args
+					.get("splunk.transport.hec.maxInFlight")));
+		} catch (Exception e) {
+
+		}
+
+		try {
+			setAdaptive(Boolean.parseBoolean(args
+					.get("splunk.transport.hec.adaptive")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setMinInFlight(Integer.parseInt(args
+					.get("splunk.transport.hec.minInFlight")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setMinBatchSizeBytes(args
+					.get("splunk.transport.hec.minBatchSizeBytes"));
+		} catch (Exception e) {
+
+		}
+
 		try {
 			setHTTPs(Boolean.parseBoolean(args
 					.get("splunk.transport.hec.https")));
@@ -104,6 +292,25 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 
 		}
 
+		try {
+			setGzip(Boolean.parseBoolean(args
+					.get("splunk.transport.hec.gzip")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setGzipLevel(Integer.parseInt(args
+					.get("splunk.transport.hec.gzipLevel")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setGzipMinBytes(Integer.parseInt(args
+					.get("splunk.transport.hec.gzipMinBytes")));
+		} catch (Exception e) {
+
+		}
+
 		try {
 			setBatchMode(Boolean.parseBoolean(args
 					.get("splunk.transport.hec.batchMode")));
@@ -146,6 +353,53 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 
 		}
 
+		try {
+			setRaw(Boolean.parseBoolean(args.get("splunk.transport.hec.raw")));
+		} catch (Exception e) {
+
+		}
+		try {
+			String channelProperty = args.get("splunk.transport.hec.channel");
+			if (channelProperty != null && channelProperty.length() > 0)
+				setChannel(channelProperty);
+		} catch (Exception e) {
+
+		}
+
+		try {
+			setAck(Boolean.parseBoolean(args.get("splunk.transport.hec.ack")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setAckPollInterval(Long.parseLong(args
+					.get("splunk.transport.hec.ackPollInterval")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setAckTimeout(Long.parseLong(args
+					.get("splunk.transport.hec.ackTimeout")));
+		} catch (Exception e) {
+
+		}
+
+		try {
+			setMetrics(Boolean.parseBoolean(args
+					.get("splunk.transport.hec.metrics")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setMetricsIndex(args.get("splunk.transport.hec.metricsIndex"));
+		} catch (Exception e) {
+
+		}
+		String metricEventsProperty = args
+				.get("splunk.transport.hec.metricEvents");
+		setMetricEvents(metricEventsProperty == null ? "agent_stats,jmx"
+				: metricEventsProperty);
+
 		try {
 			setDropEventsOnQueueFull(Boolean.parseBoolean(args
 					.get("splunk.transport.hec.dropEventsOnQueueFull")));
@@ -157,15 +411,45 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 		} catch (Exception e) {
 
 		}
+
+		try {
+			setQueueFullPolicy(args
+					.get("splunk.transport.hec.queueFullPolicy"));
+		} catch (Exception e) {
+
+		}
+		String spillDirProperty = args.get("splunk.transport.hec.spillDir");
+		if (spillDirProperty != null && spillDirProperty.trim().length() > 0)
+			setSpillDir(spillDirProperty.trim());
+		try {
+			setSpillMaxSize(args.get("splunk.transport.hec.spillMaxSize"));
+		} catch (Exception e) {
+
+		}
+		try {
+			setSpillSegmentSize(args
+					.get("splunk.transport.hec.spillSegmentSize"));
+		} catch (Exception e) {
+
+		}
+		openSpillQueue();
 	}
 
 	@Override
 	public void start() throws Exception {
 
+		synchronized (lifecycleLock) {
+			stopped = false;
+			if (reconnector != null)
+				reconnector.reset();
+			startClient();
+		}
+	}
+
+	private void startClient() throws Exception {
+
 		logger.info("Starting HEC transport");
 
-		this.batchBuffer = Collections
-				.synchronizedList(new LinkedList<String>());
 		this.lastEventReceivedTime = System.currentTimeMillis();
 
 		Registry<SchemeIOSessionStrategy> sslSessionStrategy = RegistryBuilder
@@ -176,81 +460,454 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 						new SSLIOSessionStrategy(getSSLContext(),
 								HOSTNAME_VERIFIER)).build();
 
-		ConnectingIOReactor ioReactor = new DefaultConnectingIOReactor();
+		ConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(
+				IOReactorConfig.DEFAULT, IO_THREAD_FACTORY);
 		PoolingNHttpClientConnectionManager cm = new PoolingNHttpClientConnectionManager(
 				ioReactor, sslSessionStrategy);
-		cm.setMaxTotal(getPoolSize());
+		HECEndpoint[] currentEndpoints = buildEndpoints();
+		cm.setMaxTotal(getPoolSize() * currentEndpoints.length);
+		cm.setDefaultMaxPerRoute(getPoolSize());
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(CONNECT_TIMEOUT)
+				.setSocketTimeout(SOCKET_TIMEOUT).build();
+
+		CloseableHttpAsyncClient newClient = HttpAsyncClients.custom()
+				.setConnectionManager(cm)
+				.setDefaultRequestConfig(requestConfig)
+				.setThreadFactory(IO_THREAD_FACTORY).build();
+
+		// posts still in flight on the old client complete or fail through
+		// their callbacks , which release the old controller's slots
+		this.flow = new HECFlowController(getAdaptive(), getMinInFlight(),
+				getMaxInFlight(), getMinBatchSizeBytes(),
+				getMaxBatchSizeBytes(), getMaxBatchSizeEvents(), flow);
+
+		// a new level takes effect on restart , a post racing with the swap
+		// that finds the old compressor ended goes out uncompressed
+		GzipCompressor oldCompressor = compressor;
+		if (!getGzip()) {
+			compressor = null;
+		} else if (oldCompressor == null
+				|| oldCompressor.getLevel() != getGzipLevel()) {
+			compressor = new GzipCompressor(getGzipLevel());
+		}
+		if (oldCompressor != null && oldCompressor != compressor)
+			oldCompressor.end();
+
+		for (HECEndpoint endpoint : currentEndpoints) {
+			buildURIs(endpoint);
+		}
+		this.balancer = HECLoadBalancer.create(getLoadBalancing());
+
+		// only published once started
+		newClient.start();
+		httpClient = newClient;
 
-		HttpHost splunk = new HttpHost(getHost(), getPort());
-		cm.setMaxPerRoute(new HttpRoute(splunk), getPoolSize());
+		if (getAck() && ackPoller == null) {
+			ackPoller = new AckPollerThread(this);
+			ackPoller.start();
+		}
+		if (healthChecker == null) {
+			healthChecker = new HealthCheckerThread(this);
+			healthChecker.start();
+		}
+
+		// restarts reuse the scheduler that is already running
+		if (scheduler == null) {
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(FLUSHER_THREAD_FACTORY);
+			reconnector = new Reconnector("HEC transport",
+					new Reconnector.Connection() {
+						public void reconnect() throws Exception {
+							synchronized (lifecycleLock) {
+								// paused or replaced in the meantime
+								if (stopped)
+									return;
+								stopClient();
+								startClient();
+							}
+						}
+					}, scheduler, reconnectDelay, reconnectMaxDelay);
+		}
+		reconnector.connected();
+
+		// post what was queued while the client was down , or left on disk
+		// by a previous run
+		scheduleFlush();
+
+	}
 
-		httpClient = HttpAsyncClients.custom().setConnectionManager(cm).build();
+	/**
+	 * Schedule the idle flush if there is a batch or queued posts waiting and
+	 * it isn't already scheduled
+	 */
+	private void scheduleFlush() {
+
+		if ((getBatchMode() || queueContainsEvents())
+				&& flushScheduled.compareAndSet(false, true)) {
+			try {
+				scheduler.schedule(flushTask,
+						getMaxInactiveTimeBeforeBatchFlush(),
+						TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// closed , the replacement transport sends what is queued
+				flushScheduled.set(false);
+			}
+		}
+	}
 
-		uri = new URIBuilder().setScheme(getHTTPs() ? "https" : "http")
-				.setHost(getHost()).setPort(getPort())
-				.setPath("/services/collector").build();
+	/**
+	 * Runs on the flusher thread. If events arrived since it was scheduled it
+	 * reschedules itself for the rest of the inactive time , otherwise it
+	 * flushes the batch and posts what is on the queue.
+	 */
+	private void idleFlush() {
 
-		httpClient.start();
+		long idle = System.currentTimeMillis() - lastEventReceivedTime;
+		long inactive = getMaxInactiveTimeBeforeBatchFlush();
+		if (idle < inactive) {
+			try {
+				scheduler.schedule(flushTask, inactive - idle,
+						TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				flushScheduled.set(false);
+			}
+			return;
+		}
+		flushScheduled.set(false);
 
-		if (getBatchMode()) {
-			new BatchBufferActivityCheckerThread(this).start();
+		try {
+			flushBatchBuffer();
+			postQueued();
+		} catch (Exception e) {
+			logger.error("Error sending message via HEC transport : "
+					+ e.getMessage());
+			// the batch was put back on the queue for retry
+			sendFailed();
+			reconnector.reconnectLater();
 		}
 
+		// HEC is backing off or unavailable , try again later
+		if (queueContainsEvents())
+			scheduleFlush();
 	}
 
-	class BatchBufferActivityCheckerThread extends Thread {
+	/**
+	 * The endpoints for the configured hosts , kept across restarts so their
+	 * health and pending acks survive. If the hosts have changed the posts
+	 * still waiting for acks from the old endpoints are put back at the head
+	 * of the queue.
+	 * 
+	 * @return
+	 */
+	private HECEndpoint[] buildEndpoints() {
+
+		String spec = getHosts();
+		HECEndpoint[] current = endpoints;
+		if (current != null && spec.equals(endpointsSpec))
+			return current;
+
+		HECEndpoint[] built = HECEndpoint.parse(spec, getPort());
+		if (built.length == 0)
+			throw new IllegalArgumentException("No HEC hosts in : " + spec);
+		if (current != null) {
+			for (HECEndpoint old : current) {
+				requeueAcks(old.pendingAcks, new ArrayList<Long>(
+						old.pendingAcks.keySet()));
+			}
+		}
+		endpointsSpec = spec;
+		endpoints = built;
+		return built;
+	}
+
+	private void buildURIs(HECEndpoint endpoint) throws Exception {
+
+		String scheme = getHTTPs() ? "https" : "http";
+		URIBuilder uriBuilder = new URIBuilder().setScheme(scheme)
+				.setHost(endpoint.getHost()).setPort(endpoint.getPort());
+		if (getRaw()) {
+			// the raw endpoint takes the metadata as query parameters
+			uriBuilder.setPath("/services/collector/raw").addParameter(
+					"channel", getChannel());
+			if (getIndex() != null)
+				uriBuilder.addParameter("index", getIndex());
+			if (getSource() != null)
+				uriBuilder.addParameter("source", getSource());
+			if (getSourcetype() != null)
+				uriBuilder.addParameter("sourcetype", getSourcetype());
+		} else {
+			uriBuilder.setPath("/services/collector");
+		}
+		endpoint.uri = uriBuilder.build();
+		endpoint.ackUri = new URIBuilder().setScheme(scheme)
+				.setHost(endpoint.getHost()).setPort(endpoint.getPort())
+				.setPath("/services/collector/ack")
+				.addParameter("channel", getChannel()).build();
+		endpoint.healthUri = new URIBuilder().setScheme(scheme)
+				.setHost(endpoint.getHost()).setPort(endpoint.getPort())
+				.setPath("/services/collector/health").build();
+	}
+
+	/**
+	 * Probes the ejected endpoints and readmits the ones that are healthy
+	 * again , the healthy ones are watched through the posts sent to them
+	 */
+	class HealthCheckerThread extends Thread {
 
 		SplunkHECTransport parent;
+		volatile boolean stopped = false;
 
-		BatchBufferActivityCheckerThread(SplunkHECTransport parent) {
+		HealthCheckerThread(SplunkHECTransport parent) {
 
+			super(OverheadGovernor.AGENT_THREAD_PREFIX + "hec-healthchecker");
 			this.parent = parent;
+			setDaemon(true);
+		}
+
+		public void stopThread() {
+			this.stopped = true;
+			interrupt();
 		}
 
 		public void run() {
 
-			while (true) {
-				String currentMessage = "";
+			while (!stopped) {
 				try {
-					long currentTime = System.currentTimeMillis();
-					if ((currentTime - parent.lastEventReceivedTime) >= parent
-							.getMaxInactiveTimeBeforeBatchFlush()) {
-						if (batchBuffer.size() > 0) {
-							currentMessage = parent.rollOutBatchBuffer();
-							parent.batchBuffer.clear();
-							parent.currentBatchSizeBytes = 0;
-							parent.hecPost(currentMessage);
+					Thread.sleep(parent.getHealthCheckInterval());
+				} catch (InterruptedException e) {
+					return;
+				}
+				HECEndpoint[] current = parent.endpoints;
+				for (HECEndpoint endpoint : current) {
+					if (endpoint.isHealthy())
+						continue;
+					try {
+						if (parent.probe(endpoint)) {
+							endpoint.readmit();
+							logger.info("HEC endpoint " + endpoint
+									+ " is healthy , readmitted");
 						}
+					} catch (Exception e) {
+						// still down , try again next time
 					}
+				}
+			}
+		}
+	}
 
-					Thread.sleep(1000);
-				} catch (Exception e) {
-					// something went wrong , put message on the queue for retry
-					enqueue(currentMessage);
-					try {
-						parent.stop();
-					} catch (Exception e1) {
-					}
+	private boolean probe(HECEndpoint endpoint) throws Exception {
+
+		HttpGet get = new HttpGet(endpoint.healthUri);
+		HttpResponse response = httpClient.execute(get, null).get();
+		EntityUtils.consume(response.getEntity());
+		return response.getStatusLine().getStatusCode() == 200;
+	}
+
+	private void endpointFailed(HECEndpoint endpoint) {
+
+		if (endpoint.failed(getFailureThreshold()))
+			logger.error("HEC endpoint " + endpoint + " ejected after "
+					+ getFailureThreshold() + " failures");
+	}
+
+	/**
+	 * A post that HEC accepted but hasn't yet confirmed as indexed
+	 */
+	static class PendingAck {
+
+		final byte[] content;
+		final long sent;
+
+		PendingAck(byte[] content, long sent) {
+			this.content = content;
+			this.sent = sent;
+		}
+	}
+
+	class AckPollerThread extends Thread {
+
+		SplunkHECTransport parent;
+		volatile boolean stopped = false;
+
+		AckPollerThread(SplunkHECTransport parent) {
 
+			super(OverheadGovernor.AGENT_THREAD_PREFIX + "hec-ackpoller");
+			this.parent = parent;
+			setDaemon(true);
+		}
+
+		public void stopThread() {
+			this.stopped = true;
+			interrupt();
+		}
+
+		public void run() {
+
+			while (!stopped) {
+				try {
+					Thread.sleep(parent.getAckPollInterval());
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (HECEndpoint endpoint : parent.endpoints) {
 					try {
-						parent.start();
-					} catch (Exception e2) {
+						parent.pollAcks(endpoint);
+					} catch (Exception e) {
+						if (stopped)
+							return;
+						// unconfirmed posts are retried once they time out
+						logger.error("Error polling HEC acks from " + endpoint
+								+ " : " + e.getMessage());
 					}
 				}
+			}
+		}
+	}
+
+	/**
+	 * Ask an endpoint which of its pending posts have been indexed , in one
+	 * request for all of them , and put the ones that have waited longer than
+	 * the ack timeout back at the head of the queue
+	 * 
+	 * @param endpoint
+	 * @throws Exception
+	 */
+	private void pollAcks(HECEndpoint endpoint) throws Exception {
 
+		Map<Long, PendingAck> pendingAcks = endpoint.pendingAcks;
+		if (pendingAcks.isEmpty())
+			return;
+
+		long now = System.currentTimeMillis();
+		List<Long> ids = new ArrayList<Long>(pendingAcks.size());
+		List<Long> expired = new ArrayList<Long>();
+		for (Map.Entry<Long, PendingAck> entry : pendingAcks.entrySet()) {
+			if (now - entry.getValue().sent >= getAckTimeout()) {
+				logger.error("HEC post not acknowledged within "
+						+ getAckTimeout() + "ms , retrying");
+				expired.add(entry.getKey());
+			} else {
+				ids.add(entry.getKey());
 			}
 		}
+		requeueAcks(pendingAcks, expired);
+		if (ids.isEmpty() || !endpoint.isAvailable(now))
+			return;
+
+		Utf8Buffer body = new Utf8Buffer(16 + ids.size() * 8);
+		body.append("{\"acks\":[");
+		for (int i = 0; i < ids.size(); i++) {
+			if (i > 0)
+				body.write(',');
+			body.append(ids.get(i).longValue());
+		}
+		body.write(']').write('}');
+
+		HttpPost post = new HttpPost(endpoint.ackUri);
+		post.addHeader("Authorization", "Splunk " + getToken());
+		post.addHeader("X-Splunk-Request-Channel", getChannel());
+		post.setEntity(new ByteArrayEntity(body.toByteArray(), JSON));
+
+		HttpResponse response = httpClient.execute(post, null).get();
+		int status = response.getStatusLine().getStatusCode();
+		if (status < 200 || status >= 300) {
+			if (status == 429 || status == 503)
+				endpoint.backOff(retryAfter(response));
+			logger.error("HEC ack poll rejected by " + endpoint + " : "
+					+ response.getStatusLine());
+			return;
+		}
+
+		// {"acks":{"1":true,"2":false}}
+		Matcher matcher = ACK_STATUS.matcher(EntityUtils.toString(response
+				.getEntity()));
+		while (matcher.find()) {
+			if ("true".equals(matcher.group(2)))
+				pendingAcks.remove(Long.valueOf(matcher.group(1)));
+		}
 	}
 
-	private String rollOutBatchBuffer() {
+	/**
+	 * @param response
+	 * @return the Retry-After header in millis , 0 if there isn't one
+	 */
+	private static long retryAfter(HttpResponse response) {
 
-		StringBuffer sb = new StringBuffer();
+		Header retryAfter = response.getFirstHeader("Retry-After");
+		if (retryAfter != null) {
+			try {
+				return Long.parseLong(retryAfter.getValue().trim()) * 1000;
+			} catch (NumberFormatException e) {
+			}
+		}
+		return 0;
+	}
 
-		for (String event : batchBuffer) {
-			sb.append(event);
+	/**
+	 * Take posts out of the pending acks and put them back at the head of the
+	 * queue , in the order they were sent as ack ids go up with each post on
+	 * a channel
+	 * 
+	 * @param pendingAcks
+	 * @param ids
+	 */
+	private void requeueAcks(Map<Long, PendingAck> pendingAcks, List<Long> ids) {
+
+		Collections.sort(ids);
+		for (int i = ids.size() - 1; i >= 0; i--) {
+			PendingAck pending = pendingAcks.remove(ids.get(i));
+			if (pending != null)
+				requeue(pending.content);
 		}
+	}
 
-		return sb.toString();
+	/**
+	 * Post the batch buffer if it holds any events. If the post fails , or
+	 * no endpoint is available , the batch is put back at the head of the
+	 * queue for retry.
+	 * 
+	 * @throws Exception
+	 */
+	private void flushBatchBuffer() throws Exception {
+
+		byte[] content = batch.drain();
+		if (content == null)
+			return;
+		try {
+			hecPost(content);
+		} catch (Exception e) {
+			requeue(content);
+			throw e;
+		}
+	}
+
+	/**
+	 * Post what is on the queue , only what was there to begin with as posts
+	 * that fail are put back on it
+	 * 
+	 * @throws Exception
+	 */
+	private void postQueued() throws Exception {
+
+		long pending = getCurrentQueueSize();
+		for (long i = 0; i < pending; i++) {
+
+			byte[] queued = dequeue();
+			if (queued == null)
+				break;
+			boolean posted;
+			try {
+				posted = hecPost(queued);
+			} catch (Exception e) {
+				requeue(queued);
+				throw e;
+			}
+			// every endpoint is down or backing off
+			if (!posted)
+				break;
+		}
 	}
 
 	private SSLContext getSSLContext() {
@@ -273,16 +930,74 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 
 	@Override
 	public void stop() throws Exception {
+
+		synchronized (lifecycleLock) {
+			stopped = true;
+			if (reconnector != null)
+				reconnector.cancel();
+			stopClient();
+		}
+	}
+
+	private void stopClient() {
 		try {
 
 			logger.info("Stopping HEC transport");
 
+			// started again , with the pending acks it left , by start()
+			if (ackPoller != null) {
+				ackPoller.stopThread();
+				ackPoller = null;
+			}
 			httpClient.close();
 		} catch (Exception e) {
 		}
 
 	}
 
+	/**
+	 * Stops the health checker and the flusher. The posts still waiting for
+	 * acks go ahead of the queue , and the batch that hasn't been posted
+	 * behind it , for the transport that replaces this one.
+	 */
+	@Override
+	public void close() {
+
+		if (healthChecker != null) {
+			healthChecker.stopThread();
+			healthChecker = null;
+		}
+		if (scheduler != null)
+			scheduler.shutdownNow();
+
+		byte[] content = batch.drain();
+		if (content != null)
+			enqueue(content);
+
+		HECEndpoint[] current = endpoints;
+		if (current != null) {
+			for (HECEndpoint endpoint : current) {
+				requeueAcks(endpoint.pendingAcks, new ArrayList<Long>(
+						endpoint.pendingAcks.keySet()));
+			}
+		}
+
+		GzipCompressor currentCompressor = compressor;
+		compressor = null;
+		if (currentCompressor != null)
+			currentCompressor.end();
+		super.close();
+	}
+
+	@Override
+	public void takeQueue(SplunkInput previous) {
+
+		// raw and JSON posts can't be mixed
+		if (previous instanceof SplunkHECTransport
+				&& ((SplunkHECTransport) previous).getRaw() == getRaw())
+			super.takeQueue(previous);
+	}
+
 	@Override
 	public void restart() throws Exception {
 
@@ -296,91 +1011,220 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 	@Override
 	public void send(SplunkLogEvent event) {
 
-		String currentMessage = "";
-
 		try {
-			String message = wrapMessageInQuotes(event.toString());
-			// could use a JSON Object , but the JSON is so trivial , just
-			// building it with a StringBuffer
-			StringBuffer json = new StringBuffer();
-			json.append("{\"").append("event\":").append(message).append(",\"")
-					.append("index\":\"").append(getIndex()).append("\",\"")
-					.append("source\":\"").append(getSource()).append("\",\"")
-					.append("sourcetype\":\"").append(getSourcetype())
-					.append("\"").append("}");
-
-			currentMessage = json.toString();
-
+			lastEventReceivedTime = System.currentTimeMillis();
 			if (getBatchMode()) {
 
-				lastEventReceivedTime = System.currentTimeMillis();
-				currentBatchSizeBytes += currentMessage.length();
-				batchBuffer.add(currentMessage);
-
-				if (flushBuffer()) {
-
-					currentMessage = rollOutBatchBuffer();
-					batchBuffer.clear();
-					currentBatchSizeBytes = 0;
-					hecPost(currentMessage);
+				Utf8Buffer out = batch.beginAppend();
+				int start = out.size();
+				boolean appended = false;
+				try {
+					encode(event, out);
+					appended = true;
+				} finally {
+					if (!appended)
+						out.truncate(start);
+					batch.endAppend(appended);
 				}
+				if (flushBuffer())
+					flushBatchBuffer();
 			} else {
-				hecPost(currentMessage);
+				message.reset();
+				encode(event, message);
+				byte[] content = message.toByteArray();
+				try {
+					hecPost(content);
+				} catch (Exception e) {
+					requeue(content);
+					throw e;
+				}
 			}
 
-			// flush the queue
-			while (queueContainsEvents()) {
-
-				String messageOffQueue = dequeue();
-				currentMessage = messageOffQueue;
-				hecPost(currentMessage);
-			}
+			postQueued();
 
 		} catch (Exception e) {
 
 			logger.error("Error sending message via HEC transport : "
 					+ e.getMessage());
+			sendFailed();
 
-			// something went wrong , put message on the queue for retry
-			enqueue(currentMessage);
-			try {
-				stop();
-			} catch (Exception e1) {
-			}
-
-			try {
-				start();
-			} catch (Exception e2) {
-			}
+			// rebuilt off the send path , events are queued in the meantime
+			reconnector.reconnectLater();
 		}
 
+		scheduleFlush();
+
+	}
+
+	private void encode(SplunkLogEvent event, Utf8Buffer out) {
+
+		if (getRaw()) {
+			// the events are already key=value text , no envelope needed
+			out.append(event).write('\n');
+		} else {
+			HECJsonEncoder currentEncoder = getEncoder();
+			if (!isMetricEvent(event)
+					|| !currentEncoder.encodeMetrics(event, out))
+				currentEncoder.encode(event, out);
+		}
 	}
 
 	private boolean flushBuffer() {
 
-		return (currentBatchSizeBytes >= getMaxBatchSizeBytes())
-				|| (batchBuffer.size() >= getMaxBatchSizeEvents());
+		HECFlowController current = flow;
+		return (batch.size() >= current.getBatchSizeBytes())
+				|| (batch.events() >= current.getBatchSizeEvents());
 
 	}
 
-	private void hecPost(String currentMessage) throws Exception {
-		HttpPost post = new HttpPost(uri);
-		post.addHeader("Authorization", "Splunk " + getToken());
+	/**
+	 * Post asynchronously to the endpoint the balancer picks , blocking while
+	 * the max number of posts are already in flight. Posts that fail are put
+	 * back at the head of the queue for retry , ahead of newer events.
+	 * 
+	 * @param content
+	 *            owned by the post from here on
+	 * @return false if no endpoint is available , in which case the content
+	 *         was put back at the head of the queue
+	 * @throws Exception
+	 *             if the post could not be started , or no slot came free
+	 *             within the slot timeout , the caller puts the content back
+	 */
+	private boolean hecPost(final byte[] content) throws Exception {
+
+		final HECFlowController permits = flow;
+		if (!permits.acquire(SLOT_TIMEOUT))
+			throw new IOException("No HEC post slot came free within "
+					+ SLOT_TIMEOUT + "ms");
+		final HECEndpoint endpoint = balancer.select(endpoints);
+		if (endpoint == null) {
+			permits.release();
+			requeue(content);
+			return false;
+		}
 
-		StringEntity requestEntity = new StringEntity(currentMessage,
-				ContentType.create("application/json", "UTF-8"));
+		HttpPost post = new HttpPost(endpoint.uri);
+		post.addHeader("Authorization", "Splunk " + getToken());
+		post.addHeader("X-Splunk-Request-Channel", getChannel());
+
+		ContentType contentType = getRaw() ? TEXT : JSON;
+		ByteArrayEntity requestEntity;
+		GzipCompressor currentCompressor = compressor;
+		byte[] gzipped = null;
+		if (getGzip() && currentCompressor != null
+				&& content.length >= getGzipMinBytes())
+			gzipped = currentCompressor.compress(content);
+		if (gzipped != null) {
+			// the retry queue keeps the uncompressed content
+			requestEntity = new ByteArrayEntity(gzipped, contentType);
+			requestEntity.setContentEncoding("gzip");
+		} else {
+			requestEntity = new ByteArrayEntity(content, contentType);
+		}
 
 		post.setEntity(requestEntity);
-		Future<HttpResponse> future = httpClient.execute(post, null);
-		HttpResponse response = future.get();
-		// System.out.println(response.getStatusLine());
-		// System.out.println(EntityUtils.toString(response.getEntity()));
 
+		final long sendStart = System.currentTimeMillis();
+		endpoint.postStarted();
+		try {
+			httpClient.execute(post, new FutureCallback<HttpResponse>() {
+
+				public void completed(HttpResponse response) {
+
+					permits.release();
+					endpoint.postFinished();
+					int status = response.getStatusLine().getStatusCode();
+					if (status >= 200 && status < 300) {
+						long millis = System.currentTimeMillis() - sendStart;
+						endpoint.succeeded(millis);
+						permits.succeeded(millis, queueContainsEvents());
+						sendSucceeded(millis);
+						if (getAck())
+							awaitAck(endpoint, response, content);
+					} else {
+						logger.error("HEC post rejected by " + endpoint
+								+ " : " + response.getStatusLine());
+						sendFailed();
+						if (status == 429 || status == 503)
+							endpoint.backOff(retryAfter(response));
+						else if (status >= 500)
+							endpointFailed(endpoint);
+						if (status == 429 || status >= 500)
+							permits.overloaded();
+						// HEC is overloaded or unavailable , worth retrying
+						if (status == 429 || status >= 500)
+							requeue(content);
+					}
+				}
+
+				public void failed(Exception e) {
+
+					permits.release();
+					endpoint.postFinished();
+					logger.error("Error sending message via HEC transport to "
+							+ endpoint + " : " + e.getMessage());
+					sendFailed();
+					endpointFailed(endpoint);
+					permits.overloaded();
+					requeue(content);
+				}
+
+				public void cancelled() {
+
+					permits.release();
+					endpoint.postFinished();
+					requeue(content);
+				}
+			});
+		} catch (RuntimeException e) {
+			permits.release();
+			endpoint.postFinished();
+			throw e;
+		}
+		return true;
+
+	}
+
+	/**
+	 * Hold on to an accepted post until the ack poller hears it was indexed
+	 * 
+	 * @param endpoint
+	 *            the endpoint that accepted it
+	 * @param response
+	 *            {"text":"Success","code":0,"ackId":7}
+	 * @param content
+	 */
+	private void awaitAck(HECEndpoint endpoint, HttpResponse response,
+			byte[] content) {
+
+		try {
+			Matcher matcher = ACK_ID.matcher(EntityUtils.toString(response
+					.getEntity()));
+			// no ackId , acknowledgement isn't enabled for the token
+			if (matcher.find())
+				endpoint.pendingAcks.put(Long.valueOf(matcher.group(1)),
+						new PendingAck(content, System.currentTimeMillis()));
+		} catch (Exception e) {
+			logger.error("Error reading HEC ackId : " + e.getMessage());
+		}
 	}
 
-	private String wrapMessageInQuotes(String message) {
+	private boolean isMetricEvent(SplunkLogEvent event) {
 
-		return "\"" + message + "\"";
+		// the event name is always the first pair
+		return metrics && event.size() > 0
+				&& metricEvents.contains(event.getStringValue(0));
+	}
+
+	private HECJsonEncoder getEncoder() {
+
+		HECJsonEncoder current = encoder;
+		if (current == null) {
+			current = new HECJsonEncoder(getIndex(), getSource(),
+					getSourcetype(), metricsIndex);
+			encoder = current;
+		}
+		return current;
 	}
 
 	public String getToken() {
@@ -407,12 +1251,109 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 		this.port = port;
 	}
 
+	/**
+	 * @return the hosts list , or host:port if there isn't one
+	 */
+	public String getHosts() {
+		return hosts != null ? hosts : host + ":" + port;
+	}
+
+	/**
+	 * Takes effect on the next (re)start.
+	 * 
+	 * @param hosts
+	 *            comma delimited list of host:port , hosts without a port use
+	 *            the port setting
+	 */
+	public void setHosts(String hosts) {
+		this.hosts = hosts;
+	}
+
+	public String getLoadBalancing() {
+		return loadBalancing;
+	}
+
+	/**
+	 * Takes effect on the next (re)start.
+	 * 
+	 * @param loadBalancing
+	 *            roundRobin | leastInFlight | latency
+	 */
+	public void setLoadBalancing(String loadBalancing) {
+		this.loadBalancing = loadBalancing;
+	}
+
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	public void setFailureThreshold(int failureThreshold) {
+		this.failureThreshold = failureThreshold;
+	}
+
+	public long getHealthCheckInterval() {
+		return healthCheckInterval;
+	}
+
+	public void setHealthCheckInterval(long healthCheckInterval) {
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	public long getReconnectDelay() {
+		return reconnectDelay;
+	}
+
+	/**
+	 * Takes effect when the transport is first started.
+	 * 
+	 * @param reconnectDelay
+	 *            millis before the second attempt to rebuild a failed client ,
+	 *            doubled for every attempt after that
+	 */
+	public void setReconnectDelay(long reconnectDelay) {
+		this.reconnectDelay = reconnectDelay;
+	}
+
+	public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+
+	/**
+	 * Takes effect when the transport is first started.
+	 * 
+	 * @param reconnectMaxDelay
+	 *            max millis between attempts to rebuild a failed client
+	 */
+	public void setReconnectMaxDelay(long reconnectMaxDelay) {
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+
+	/**
+	 * @return host:port of the endpoints that are ejected
+	 */
+	public String getUnhealthyEndpoints() {
+
+		StringBuilder sb = new StringBuilder();
+		HECEndpoint[] current = endpoints;
+		if (current != null) {
+			for (HECEndpoint endpoint : current) {
+				if (endpoint.isHealthy())
+					continue;
+				if (sb.length() > 0)
+					sb.append(',');
+				sb.append(endpoint);
+			}
+		}
+		return sb.toString();
+	}
+
 	public String getIndex() {
 		return this.index;
 	}
 
 	public void setIndex(String index) {
 		this.index = index;
+		this.encoder = null;
 	}
 
 	public String getSource() {
@@ -421,6 +1362,7 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 
 	public void setSource(String source) {
 		this.source = source;
+		this.encoder = null;
 		if(this.source.contains("${hostname}")) {
 			try {
 				this.source = this.source.replace("${hostname}", InetAddress.getLocalHost().getHostName());
@@ -435,6 +1377,7 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 
 	public void setSourcetype(String sourcetype) {
 		this.sourcetype = sourcetype;
+		this.encoder = null;
 	}
 
 	@Override
@@ -458,6 +1401,85 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 		return this.poolsize;
 	}
 
+	public int getMaxInFlight() {
+		return maxInFlight > 0 ? maxInFlight : poolsize;
+	}
+
+	/**
+	 * Max number of posts awaiting a response , the transporter blocks when
+	 * this is reached. Takes effect on the next (re)start.
+	 * 
+	 * @param maxInFlight
+	 *            0 for the pool size
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+	}
+
+	public boolean getAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * If true , the number of posts in flight and the batch size are adjusted
+	 * to HEC's latency and errors and to the queue depth , see
+	 * {@link HECFlowController}. Takes effect on the next (re)start.
+	 * 
+	 * @param adaptive
+	 */
+	public void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	public int getMinInFlight() {
+		return minInFlight;
+	}
+
+	public void setMinInFlight(int minInFlight) {
+		this.minInFlight = minInFlight;
+	}
+
+	public long getMinBatchSizeBytes() {
+		return minBatchSizeBytes;
+	}
+
+	public void setMinBatchSizeBytes(long minBatchSizeBytes) {
+		this.minBatchSizeBytes = minBatchSizeBytes;
+	}
+
+	/**
+	 * Set the adaptive batch size lower bound from the configured property
+	 * String value. If parsing fails , the default of 64KB will be used.
+	 * 
+	 * @param rawProperty
+	 *            in format [<integer>|<integer>[KB|MB|GB]]
+	 */
+	public void setMinBatchSizeBytes(String rawProperty) {
+
+		long bytes = parseSize(rawProperty);
+		if (bytes > 0)
+			setMinBatchSizeBytes(bytes);
+	}
+
+	/**
+	 * @return the current limit on posts in flight
+	 */
+	public int getInFlightLimit() {
+
+		HECFlowController current = flow;
+		return current == null ? getMaxInFlight() : current.getLimit();
+	}
+
+	/**
+	 * @return the current batch size
+	 */
+	public long getBatchSizeBytes() {
+
+		HECFlowController current = flow;
+		return current == null ? getMaxBatchSizeBytes() : current
+				.getBatchSizeBytes();
+	}
+
 	@Override
 	public void setHTTPs(boolean val) {
 		this.https = val;
@@ -470,6 +1492,46 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 
 	}
 
+	public boolean getGzip() {
+		return gzip;
+	}
+
+	/**
+	 * If true , posts are sent with Content-Encoding: gzip. Takes effect on
+	 * the next (re)start.
+	 * 
+	 * @param gzip
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+
+	public int getGzipLevel() {
+		return gzipLevel;
+	}
+
+	/**
+	 * Takes effect on the next (re)start.
+	 * 
+	 * @param gzipLevel
+	 *            0-9 , -1 for the default level
+	 */
+	public void setGzipLevel(int gzipLevel) {
+		this.gzipLevel = gzipLevel;
+	}
+
+	public int getGzipMinBytes() {
+		return gzipMinBytes;
+	}
+
+	/**
+	 * @param gzipMinBytes
+	 *            posts smaller than this aren't worth compressing
+	 */
+	public void setGzipMinBytes(int gzipMinBytes) {
+		this.gzipMinBytes = gzipMinBytes;
+	}
+
 	public boolean getBatchMode() {
 		return batchMode;
 	}
@@ -525,6 +1587,119 @@ public class SplunkHECTransport extends SplunkInput implements SplunkTransport,
 		this.maxBatchSizeEvents = maxBatchSizeEvents;
 	}
 
+	public boolean getRaw() {
+		return raw;
+	}
+
+	/**
+	 * If true , events are posted as newline delimited text to the raw
+	 * endpoint with the index , source and sourcetype as query parameters.
+	 * The metrics settings don't apply. Takes effect on the next (re)start.
+	 * 
+	 * @param raw
+	 */
+	public void setRaw(boolean raw) {
+		this.raw = raw;
+	}
+
+	public String getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @param channel
+	 *            a GUID identifying this client to HEC , defaults to a random
+	 *            one
+	 */
+	public void setChannel(String channel) {
+		this.channel = channel;
+	}
+
+	public boolean getAck() {
+		return ack;
+	}
+
+	/**
+	 * If true , posts are held until HEC confirms they were indexed and are
+	 * retried if that doesn't happen within the ack timeout. Requires
+	 * indexer acknowledgement to be enabled for the token. Takes effect on
+	 * the next (re)start.
+	 * 
+	 * @param ack
+	 */
+	public void setAck(boolean ack) {
+		this.ack = ack;
+	}
+
+	public long getAckPollInterval() {
+		return ackPollInterval;
+	}
+
+	public void setAckPollInterval(long ackPollInterval) {
+		this.ackPollInterval = ackPollInterval;
+	}
+
+	public long getAckTimeout() {
+		return ackTimeout;
+	}
+
+	public void setAckTimeout(long ackTimeout) {
+		this.ackTimeout = ackTimeout;
+	}
+
+	public int getPendingAcks() {
+
+		int count = 0;
+		HECEndpoint[] current = endpoints;
+		if (current != null) {
+			for (HECEndpoint endpoint : current) {
+				count += endpoint.pendingAcks.size();
+			}
+		}
+		return count;
+	}
+
+	public boolean getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * If true , the metric events are sent in the HEC multi-metric format
+	 * 
+	 * @param metrics
+	 */
+	public void setMetrics(boolean metrics) {
+		this.metrics = metrics;
+	}
+
+	public String getMetricsIndex() {
+		return metricsIndex;
+	}
+
+	public void setMetricsIndex(String metricsIndex) {
+		this.metricsIndex = metricsIndex;
+		this.encoder = null;
+	}
+
+	public String getMetricEvents() {
+		return metricEvents.toString();
+	}
+
+	/**
+	 * @param metricEvents
+	 *            comma delimited list of the names of the events that are
+	 *            sent as metrics
+	 */
+	public void setMetricEvents(String metricEvents) {
+
+		Set<String> names = new HashSet<String>();
+		for (String name : metricEvents.split(",")) {
+			if (name.trim().length() > 0)
+				names.add(name.trim());
+		}
+		this.metricEvents = names;
+	}
+
 	public long getMaxInactiveTimeBeforeBatchFlush() {
 		return maxInactiveTimeBeforeBatchFlush;
 	}
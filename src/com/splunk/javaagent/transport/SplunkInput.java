@@ -1,13 +1,18 @@
 package com.splunk.javaagent.transport;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
 /**
  * Common base class for all Splunk Input types. Currently just has shared logic
- * for queuing up events.
+ * for queuing up events. The queue is thread safe as transports that send
+ * asynchronously put failed sends back on it from their IO threads.
  * 
  * @author Damien Dallimore damien@dtdsoftware.com
  * 
@@ -21,16 +26,32 @@ public abstract class SplunkInput {
 	public static final int MB = KB * 1024;
 	public static final int GB = MB * 1024;
 
+	// what gives when the queue is full
+	public static final String DROP_NEWEST = "dropNewest";
+	public static final String DROP_OLDEST = "dropOldest";
+
 	// default to 500K
 	private long maxQueueSize = 500 * KB;
-	// default. If true,queue will get emptied when it fills up to accommodate
-	// new data.
+	// default. If true the oldest events are dropped to make room for new
+	// ones , otherwise new events are dropped.
 	private boolean dropEventsOnQueueFull = false;
 
-	// Using this collection structure to implement the FIFO queue
-	private List<String> queue = new ArrayList<String>();
+	// ring buffer FIFO queue , adding and removing at either end is O(1).
+	// Events are held as their encoded bytes so the size accounting is exact
+	private ArrayDeque<byte[]> queue = new ArrayDeque<byte[]>();
 
 	private long currentQueueSizeInBytes = 0;
+	private long droppedEvents = 0;
+
+	// optional , events that don't fit in the queue go to disk. Once there
+	// are events on disk new ones follow them there so the order is kept.
+	private String spillDir;
+	private long spillMaxSize = 1L * GB;
+	private long spillSegmentSize = 16 * MB;
+	private DiskSpillQueue spill;
+
+	// optional , fed with the outcome of every send
+	private CircuitBreaker circuitBreaker;
 
 	/**
 	 * Add an event to the tail of the FIFO queue subject to there being
@@ -38,27 +59,162 @@ public abstract class SplunkInput {
 	 * 
 	 * @param event
 	 */
-	protected void enqueue(String event) {
+	protected synchronized void enqueue(byte[] event) {
 
-		long eventSize = event.getBytes().length;
+		long eventSize = event.length;
 
-		if (queueHasCapacity(eventSize)) {
-			logger.info("Enqueuing event");
-			queue.add(event);
+		if (spill != null
+				&& (!spill.isEmpty() || !queueHasCapacity(eventSize))) {
+			spill(event);
+		} else if (queueHasCapacity(eventSize)) {
+			logger.debug("Enqueuing event");
+			queue.addLast(event);
+			currentQueueSizeInBytes += eventSize;
+		} else if (dropEventsOnQueueFull && eventSize <= maxQueueSize) {
+			logger.info("Queue is full , dropping the oldest events"
+					+ " to accomodate");
+			while (!queueHasCapacity(eventSize))
+				drop(queue.pollFirst());
+			queue.addLast(event);
 			currentQueueSizeInBytes += eventSize;
-		} else if (dropEventsOnQueueFull) {
-			logger.info("Queue is full , dropping events to accomodate");
-			queue.clear();
-			queue.add(event);
-			currentQueueSizeInBytes = eventSize;
 
 		} else {
 			// bummer , queue is full up
 			logger.info("Queue is full , ignoring events");
+			droppedEvents++;
 
 		}
 	}
 
+	private void drop(byte[] event) {
+
+		currentQueueSizeInBytes -= event.length;
+		droppedEvents++;
+	}
+
+	/**
+	 * Put an event back at the head of the FIFO queue , for an event that was
+	 * taken off it , or was due to be sent before the queued ones , and
+	 * couldn't be sent
+	 * 
+	 * @param event
+	 */
+	protected synchronized void requeue(byte[] event) {
+
+		long eventSize = event.length;
+
+		if (queueHasCapacity(eventSize)) {
+			logger.debug("Requeuing event");
+			queue.addFirst(event);
+			currentQueueSizeInBytes += eventSize;
+		} else if (spill != null) {
+			// only the event goes to the head of the disk queue , so it is
+			// sent after what is on the queue
+			spillToHead(Collections.singletonList(event));
+		} else if (!dropEventsOnQueueFull && eventSize <= maxQueueSize) {
+			// the event is older than anything on the queue , the newest
+			// events make room for it
+			logger.info("Queue is full , dropping the newest events"
+					+ " to accomodate");
+			while (!queueHasCapacity(eventSize))
+				drop(queue.pollLast());
+			queue.addFirst(event);
+			currentQueueSizeInBytes += eventSize;
+
+		} else {
+			// bummer , the event is the oldest
+			logger.info("Queue is full , ignoring events");
+			droppedEvents++;
+
+		}
+	}
+
+	private void spill(byte[] event) {
+
+		try {
+			while (!spill.append(event)) {
+				long before = spill.getRecords();
+				if (!dropEventsOnQueueFull || !spill.dropOldest()) {
+					// bummer , disk is full up too
+					logger.info("Spill queue is full , ignoring events");
+					droppedEvents++;
+					return;
+				}
+				logger.info("Spill queue is full , dropping the oldest events"
+						+ " to accomodate");
+				droppedEvents += before - spill.getRecords();
+			}
+		} catch (IOException e) {
+			logger.error("Error spilling event to disk : " + e.getMessage());
+			droppedEvents++;
+		}
+	}
+
+	/**
+	 * Put events at the head of the disk queue. When the disk is full room
+	 * is made by the queue full policy , with dropEventsOnQueueFull the
+	 * events are the oldest so the ones that don't fit are dropped , otherwise
+	 * the newest events on disk are.
+	 * 
+	 * @param events
+	 */
+	private void spillToHead(List<byte[]> events) {
+
+		try {
+			int left = spill.prepend(events);
+			while (left > 0 && !dropEventsOnQueueFull) {
+				long before = spill.getRecords();
+				if (!spill.dropNewest())
+					break;
+				droppedEvents += before - spill.getRecords();
+				left = spill.prepend(events.subList(0, left));
+			}
+			if (left > 0) {
+				// bummer , disk is full up too
+				logger.info("Spill queue is full , ignoring events");
+				droppedEvents += left;
+			}
+		} catch (IOException e) {
+			logger.error("Error spilling events to disk : " + e.getMessage());
+			droppedEvents += events.size();
+		}
+	}
+
+	/**
+	 * Open the disk spill queue if a spill directory is set. Events left on
+	 * disk by a previous run are sent before new ones.
+	 */
+	protected synchronized void openSpillQueue() {
+
+		if (spillDir == null || spill != null)
+			return;
+		try {
+			spill = new DiskSpillQueue(new File(spillDir), spillSegmentSize,
+					spillMaxSize);
+			if (!spill.isEmpty())
+				logger.info("Replaying " + spill.getRecords()
+						+ " events spilled to disk");
+		} catch (IOException e) {
+			logger.error("Error opening spill queue in " + spillDir
+					+ " , events won't be spilled to disk : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Move the queue to the head of the disk spill queue and write it
+	 * through to disk , so that it is sent after a JVM restart. Called when
+	 * the JVM is shutting down , does nothing if there is no spill queue.
+	 */
+	public synchronized void persistQueue() {
+
+		if (spill == null)
+			return;
+		spillToHead(new ArrayList<byte[]>(queue));
+		queue.clear();
+		currentQueueSizeInBytes = 0;
+		spill.force();
+	}
+
 	/**
 	 * True if the queue has capacity for adding an event of the given size
 	 * 
@@ -75,8 +231,8 @@ public abstract class SplunkInput {
 	 * 
 	 * @return
 	 */
-	protected boolean queueContainsEvents() {
-		return !queue.isEmpty();
+	protected synchronized boolean queueContainsEvents() {
+		return !queue.isEmpty() || (spill != null && !spill.isEmpty());
 	}
 
 	/**
@@ -85,19 +241,98 @@ public abstract class SplunkInput {
 	 * 
 	 * @return
 	 */
-	protected String dequeue() {
+	protected synchronized byte[] dequeue() {
 
-		if (queueContainsEvents()) {
-			String event = queue.remove(0);
-			currentQueueSizeInBytes -= event.getBytes().length;
+		if (!queue.isEmpty()) {
+			byte[] event = queue.pollFirst();
+			currentQueueSizeInBytes -= event.length;
 			if (currentQueueSizeInBytes < 0) {
 				currentQueueSizeInBytes = 0;
 			}
 			return event;
 		}
+		// the queue is always older than what is on disk
+		if (spill != null)
+			return spill.poll();
 		return null;
 	}
 
+	/**
+	 * Called on a reload , after stop() , when a new transport is about to
+	 * replace this one. Releases what the transport holds on to , what is
+	 * still queued can then be taken over with {@link #takeQueue(SplunkInput)}.
+	 */
+	public synchronized void close() {
+
+		// what is queued goes to disk , for the replacement to replay
+		if (spill != null) {
+			persistQueue();
+			spill.close();
+			spill = null;
+		}
+	}
+
+	/**
+	 * Take over the events still queued on the transport this one replaces ,
+	 * if it encoded them the same way
+	 * 
+	 * @param previous
+	 */
+	public void takeQueue(SplunkInput previous) {
+
+		if (previous == this || previous.getClass() != getClass())
+			return;
+		int taken = 0;
+		byte[] event;
+		while ((event = previous.dequeue()) != null) {
+			enqueue(event);
+			taken++;
+		}
+		if (taken > 0)
+			logger.info("Took over " + taken + " queued events");
+	}
+
+	/**
+	 * Report a successful send to the circuit breaker
+	 * 
+	 * @param latencyMillis
+	 *            how long the send took
+	 */
+	protected void sendSucceeded(long latencyMillis) {
+
+		if (circuitBreaker != null)
+			circuitBreaker.recordSuccess(latencyMillis);
+	}
+
+	/**
+	 * Report a send that has made no progress for this long to the circuit
+	 * breaker
+	 * 
+	 * @param stalledMillis
+	 */
+	protected void sendStalled(long stalledMillis) {
+
+		if (circuitBreaker != null)
+			circuitBreaker.recordStall(stalledMillis);
+	}
+
+	/**
+	 * Report a failed send to the circuit breaker
+	 */
+	protected void sendFailed() {
+
+		if (circuitBreaker != null)
+			circuitBreaker.recordFailure();
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
 	/**
 	 * Set the queue size from the configured property String value. If parsing
 	 * fails , the default of 500KB will be used.
@@ -129,12 +364,63 @@ public abstract class SplunkInput {
 
 	}
 
+	/**
+	 * Parse a size property value
+	 * 
+	 * @param rawProperty
+	 *            in format [<integer>|<integer>[KB|MB|GB]]
+	 * @return the size in bytes , or -1 if it couldn't be parsed
+	 */
+	protected static long parseSize(String rawProperty) {
+
+		if (rawProperty == null)
+			return -1;
+		long multiplier = 1;
+		String digits = rawProperty.trim();
+		if (digits.endsWith("KB")) {
+			multiplier = KB;
+		} else if (digits.endsWith("MB")) {
+			multiplier = MB;
+		} else if (digits.endsWith("GB")) {
+			multiplier = GB;
+		}
+		if (multiplier > 1)
+			digits = digits.substring(0, digits.length() - 2);
+		try {
+			return Long.parseLong(digits) * multiplier;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
 	public long getMaxQueueSize() {
 		return maxQueueSize;
 	}
 
-	public long getCurrentQueueSize() {
-		return queue.size();
+	public synchronized long getCurrentQueueSize() {
+		return queue.size() + (spill == null ? 0 : spill.getRecords());
+	}
+
+	/**
+	 * @return bytes of the events on the queue , not counting those spilled
+	 *         to disk
+	 */
+	public synchronized long getCurrentQueueSizeInBytes() {
+		return currentQueueSizeInBytes;
+	}
+
+	/**
+	 * @return events dropped or ignored because the queue was full
+	 */
+	public synchronized long getDroppedEvents() {
+		return droppedEvents;
+	}
+
+	/**
+	 * @return bytes of spill segment files on disk
+	 */
+	public synchronized long getSpilledBytes() {
+		return spill == null ? 0 : spill.getSize();
 	}
 
 	/**
@@ -146,12 +432,57 @@ public abstract class SplunkInput {
 		this.maxQueueSize = maxQueueSize;
 	}
 
+	public String getSpillDir() {
+		return spillDir;
+	}
+
+	/**
+	 * Takes effect when the transport is initialised.
+	 * 
+	 * @param spillDir
+	 *            directory for the disk spill queue , null for none
+	 */
+	public void setSpillDir(String spillDir) {
+		this.spillDir = spillDir;
+	}
+
+	public long getSpillMaxSize() {
+		return spillMaxSize;
+	}
+
+	/**
+	 * @param rawProperty
+	 *            in format [<integer>[KB|MB|GB]]
+	 */
+	public void setSpillMaxSize(String rawProperty) {
+
+		long bytes = parseSize(rawProperty);
+		if (bytes > 0)
+			this.spillMaxSize = bytes;
+	}
+
+	public long getSpillSegmentSize() {
+		return spillSegmentSize;
+	}
+
+	/**
+	 * @param rawProperty
+	 *            in format [<integer>[KB|MB|GB]]
+	 */
+	public void setSpillSegmentSize(String rawProperty) {
+
+		long bytes = parseSize(rawProperty);
+		if (bytes > 0)
+			this.spillSegmentSize = bytes;
+	}
+
 	public boolean isDropEventsOnQueueFull() {
 		return dropEventsOnQueueFull;
 	}
 
 	/**
-	 * If true,queue will get emptied when it fills up to accommodate new data.
+	 * If true the oldest events are dropped to make room for new ones ,
+	 * otherwise new events are dropped when the queue is full.
 	 * 
 	 * @param dropEventsOnQueueFull
 	 */
@@ -159,4 +490,21 @@ public abstract class SplunkInput {
 		this.dropEventsOnQueueFull = dropEventsOnQueueFull;
 	}
 
+	public String getQueueFullPolicy() {
+		return dropEventsOnQueueFull ? DROP_OLDEST : DROP_NEWEST;
+	}
+
+	/**
+	 * @param queueFullPolicy
+	 *            dropNewest | dropOldest , same as dropEventsOnQueueFull
+	 *            false | true
+	 */
+	public void setQueueFullPolicy(String queueFullPolicy) {
+
+		if (DROP_OLDEST.equalsIgnoreCase(queueFullPolicy))
+			setDropEventsOnQueueFull(true);
+		else if (DROP_NEWEST.equalsIgnoreCase(queueFullPolicy))
+			setDropEventsOnQueueFull(false);
+	}
+
 }
@@ -1,17 +1,36 @@
 package com.splunk.javaagent.transport;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
+import com.splunk.javaagent.OverheadGovernor;
 import com.splunk.javaagent.SplunkLogEvent;
 import com.splunk.javaagent.jmx.mbean.TCPTransportMXBean;
 
+/**
+ * Streams events to a Splunk TCP input over a non blocking SocketChannel.
+ *
+ * Events are appended to a {@link GatheringWriteBuffer} and written with a
+ * single gathering write once a whole segment is full , or once they have
+ * waited for the linger time , rather than with a write and flush per event.
+ * A partial write leaves the rest for the next one , and events that don't
+ * fit in the buffer while the socket is backed up go on the queue , so the
+ * transporter thread never waits for the network.
+ *
+ */
 public class SplunkTCPTransport extends SplunkInput implements SplunkTransport,
 		TCPTransportMXBean {
 
@@ -20,11 +39,69 @@ public class SplunkTCPTransport extends SplunkInput implements SplunkTransport,
 	// connection props
 	private String host = "localhost";
 	private int port;
-
-	// streaming objects
-	private Socket streamSocket = null;
-	private OutputStream ostream;
-	private Writer writerOut = null;
+	// comma delimited host:port list , if set it replaces host and port
+	private String hosts;
+
+	// move to the next host after this many secs or bytes , 0 for never
+	private long rotateInterval = 30;
+	private long rotateVolume = 0;
+
+	private static final int CONNECT_TIMEOUT = 10000;
+
+	// lost connections are remade in the background , backing off from
+	// reconnectDelay to reconnectMaxDelay
+	private long reconnectDelay = 1000;
+	private long reconnectMaxDelay = 60000;
+	private Reconnector reconnector;
+
+	// guards choosing and connecting to the next host
+	private final Object connectLock = new Object();
+	// the current host , the first one is picked at random so that a fleet
+	// of agents spreads out over the hosts
+	private int target = -1;
+	private int targetCount;
+	private volatile InetSocketAddress currentTarget;
+
+	// how long an event waits for others to be written with it
+	private long linger = 100;
+	private long sendBufferSize = 1 * MB;
+
+	// streaming objects , guarded by lock as the flusher thread writes too
+	private final Object lock = new Object();
+	private SocketChannel channel = null;
+	private GatheringWriteBuffer buffer;
+	private long connectedAt;
+	private long bytesSinceConnect;
+	// since when the buffered bytes have waited for the socket , 0 if
+	// nothing is buffered
+	private long pendingSince;
+	// set while the connection to rotate to is being made , nothing is
+	// written in the meantime so the switch happens between events
+	private boolean rotating;
+	// set by stop() , a connection made after that is closed rather than
+	// used
+	private boolean stopped;
+
+	// the current event , encoded as UTF-8
+	private final Utf8Buffer message = new Utf8Buffer();
+
+	// writes what has lingered , only scheduled while something is waiting
+	private ScheduledExecutorService scheduler;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			lingerFlush();
+		}
+	};
+
+	private static final ThreadFactory FLUSHER_THREAD_FACTORY = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, OverheadGovernor.AGENT_THREAD_PREFIX
+					+ "tcp-flusher");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
 
 	@Override
 	public void init(Map<String, String> args) throws Exception {
@@ -36,6 +113,71 @@ public class SplunkTCPTransport extends SplunkInput implements SplunkTransport,
 		setDropEventsOnQueueFull(Boolean.parseBoolean(args
 				.get("splunk.transport.tcp.dropEventsOnQueueFull")));
 		setMaxQueueSize(args.get("splunk.transport.tcp.maxQueueSize"));
+
+		try {
+			String hostsProperty = args.get("splunk.transport.tcp.hosts");
+			if (hostsProperty != null && hostsProperty.trim().length() > 0)
+				setHosts(hostsProperty);
+		} catch (Exception e) {
+
+		}
+		try {
+			setRotateInterval(Long.parseLong(args
+					.get("splunk.transport.tcp.rotateInterval")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setRotateVolume(args.get("splunk.transport.tcp.rotateVolume"));
+		} catch (Exception e) {
+
+		}
+
+		try {
+			setReconnectDelay(Long.parseLong(args
+					.get("splunk.transport.tcp.reconnectDelay")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setReconnectMaxDelay(Long.parseLong(args
+					.get("splunk.transport.tcp.reconnectMaxDelay")));
+		} catch (Exception e) {
+
+		}
+
+		try {
+			setLinger(Long.parseLong(args.get("splunk.transport.tcp.linger")));
+		} catch (Exception e) {
+
+		}
+		try {
+			setSendBufferSize(args.get("splunk.transport.tcp.sendBufferSize"));
+		} catch (Exception e) {
+
+		}
+
+		try {
+			setQueueFullPolicy(args
+					.get("splunk.transport.tcp.queueFullPolicy"));
+		} catch (Exception e) {
+
+		}
+		String spillDirProperty = args.get("splunk.transport.tcp.spillDir");
+		if (spillDirProperty != null && spillDirProperty.trim().length() > 0)
+			setSpillDir(spillDirProperty.trim());
+		try {
+			setSpillMaxSize(args.get("splunk.transport.tcp.spillMaxSize"));
+		} catch (Exception e) {
+
+		}
+		try {
+			setSpillSegmentSize(args
+					.get("splunk.transport.tcp.spillSegmentSize"));
+		} catch (Exception e) {
+
+		}
+		openSpillQueue();
 	}
 
 	@Override
@@ -43,29 +185,281 @@ public class SplunkTCPTransport extends SplunkInput implements SplunkTransport,
 
 		logger.info("Starting TCP transport");
 
-		streamSocket = new Socket(host, port);
-		if (streamSocket.isConnected()) {
-			ostream = streamSocket.getOutputStream();
-			writerOut = new OutputStreamWriter(ostream, "UTF8");
+		// restarts reuse the scheduler that is already running
+		if (scheduler == null) {
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(FLUSHER_THREAD_FACTORY);
+			reconnector = new Reconnector("TCP transport",
+					new Reconnector.Connection() {
+						public void reconnect() throws Exception {
+							connect();
+						}
+					}, scheduler, reconnectDelay, reconnectMaxDelay);
+		}
+		reconnector.reset();
+		synchronized (lock) {
+			if (buffer == null)
+				buffer = new GatheringWriteBuffer(sendBufferSize);
+			stopped = false;
+		}
+
+		try {
+			connect();
+		} catch (IOException e) {
+			// events are queued until the connection is made
+			reconnector.reconnectLater();
 		}
 
 	}
 
+	private void connect() throws IOException {
+
+		SocketChannel newChannel = connectNext(false);
+
+		synchronized (lock) {
+			// stopped while connecting
+			if (stopped) {
+				newChannel.close();
+				return;
+			}
+			closeChannel();
+			channel = newChannel;
+			connectedAt = System.currentTimeMillis();
+			bytesSinceConnect = 0;
+			rotating = false;
+		}
+		reconnector.connected();
+
+		// send what was queued while disconnected
+		scheduleFlush();
+	}
+
 	@Override
 	public void stop() throws Exception {
+
+		logger.info("Stopping TCP transport");
+
+		synchronized (lock) {
+			stopped = true;
+			rotating = false;
+		}
+		// a paused transport doesn't reconnect by itself
+		if (reconnector != null)
+			reconnector.cancel();
+		disconnect();
+	}
+
+	/**
+	 * Write what can be written and close the channel , what is left goes
+	 * back on the queue
+	 */
+	private void disconnect() {
+
+		synchronized (lock) {
+			if (channel != null) {
+				try {
+					buffer.write(channel);
+				} catch (IOException e) {
+				}
+			}
+			// whatever didn't make it out goes ahead of the queued events ,
+			// one event at a time from the last so they keep their order
+			if (buffer != null) {
+				List<byte[]> unwritten = buffer.takeUnwritten();
+				for (int i = unwritten.size() - 1; i >= 0; i--)
+					requeue(unwritten.get(i));
+			}
+			pendingSince = 0;
+			closeChannel();
+		}
+
+	}
+
+	private InetSocketAddress[] targets() {
+
+		if (hosts == null)
+			return new InetSocketAddress[] { InetSocketAddress
+					.createUnresolved(host, port) };
+
+		List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+		for (String entry : hosts.split(",")) {
+			entry = entry.trim();
+			if (entry.length() == 0)
+				continue;
+			int colon = entry.lastIndexOf(':');
+			if (colon > 0)
+				targets.add(InetSocketAddress.createUnresolved(
+						entry.substring(0, colon),
+						Integer.parseInt(entry.substring(colon + 1))));
+			else
+				targets.add(InetSocketAddress.createUnresolved(entry, port));
+		}
+		return targets.toArray(new InetSocketAddress[targets.size()]);
+	}
+
+	/**
+	 * Connect to the host after the current one , failing over to the ones
+	 * after that
+	 * 
+	 * @param skipCurrent
+	 *            true to leave out the current host , when rotating away from
+	 *            it
+	 * @return
+	 * @throws IOException
+	 *             if none of the hosts could be connected to
+	 */
+	private SocketChannel connectNext(boolean skipCurrent) throws IOException {
+
+		synchronized (connectLock) {
+			InetSocketAddress[] targets = targets();
+			targetCount = targets.length;
+			if (target < 0)
+				target = new Random().nextInt(targets.length) - 1;
+
+			int current = target;
+			int attempts = skipCurrent ? targets.length - 1 : targets.length;
+			IOException failure = null;
+			for (int i = 0; i < attempts; i++) {
+				target = (target + 1) % targets.length;
+				InetSocketAddress address = targets[target];
+				SocketChannel newChannel = SocketChannel.open();
+				try {
+					newChannel.socket().connect(
+							new InetSocketAddress(address.getHostString(),
+									address.getPort()), CONNECT_TIMEOUT);
+					// the events are already batched , don't hold them back
+					// any longer
+					newChannel.socket().setTcpNoDelay(true);
+					newChannel.configureBlocking(false);
+					currentTarget = address;
+					logger.info("Connected to " + address.getHostString()
+							+ ":" + address.getPort());
+					return newChannel;
+				} catch (IOException e) {
+					newChannel.close();
+					logger.error("Error connecting to "
+							+ address.getHostString() + ":" + address.getPort()
+							+ " : " + e.getMessage());
+					failure = e;
+				}
+			}
+			target = current;
+			throw failure != null ? failure : new IOException(
+					"no other host to move to");
+		}
+	}
+
+	/**
+	 * True if it is time to move to the next host
+	 * 
+	 * @return
+	 */
+	private boolean rotationDue() {
+
+		if (targetCount < 2)
+			return false;
+		long connected = System.currentTimeMillis() - connectedAt;
+		return (rotateInterval > 0 && connected >= rotateInterval * 1000)
+				|| (rotateVolume > 0 && bytesSinceConnect >= rotateVolume);
+	}
+
+	/**
+	 * Runs on the flusher thread once everything has been written to the
+	 * current host
+	 */
+	private void rotate() {
+
+		SocketChannel newChannel = null;
 		try {
+			newChannel = connectNext(true);
+		} catch (IOException e) {
+			// stay on the current host
+		}
+
+		synchronized (lock) {
+			// stopped , or a restart after a failure got in first
+			if (!rotating || stopped) {
+				if (newChannel != null) {
+					try {
+						newChannel.close();
+					} catch (IOException e) {
+					}
+				}
+				return;
+			}
+			rotating = false;
+			// also when the rotation failed , so it isn't tried straight away
+			connectedAt = System.currentTimeMillis();
+			if (newChannel != null) {
+				closeChannel();
+				channel = newChannel;
+				bytesSinceConnect = 0;
+			}
+		}
+	}
+
+	/**
+	 * Write what is buffered and report the outcome to the circuit breaker.
+	 * The latency of a write is how long the bytes had waited for the socket
+	 * , a write that makes no progress reports how long the peer has stalled.
+	 * 
+	 * @throws IOException
+	 */
+	private void write() throws IOException {
+
+		if (buffer.isEmpty())
+			return;
+		long now = System.currentTimeMillis();
+		if (pendingSince == 0)
+			pendingSince = now;
+		long written = buffer.write(channel);
+		bytesSinceConnect += written;
+		now = System.currentTimeMillis();
+		if (written > 0) {
+			sendSucceeded(now - pendingSince);
+			pendingSince = buffer.isEmpty() ? 0 : now;
+		} else {
+			sendStalled(now - pendingSince);
+		}
+	}
 
-			logger.info("Stopping TCP transport");
+	/**
+	 * Note when bytes start waiting in an empty buffer
+	 */
+	private void markPending() {
 
-			if (writerOut != null) {
-				writerOut.flush();
-				writerOut.close();
-				if (streamSocket != null)
-					streamSocket.close();
+		if (pendingSince == 0 && !buffer.isEmpty())
+			pendingSince = System.currentTimeMillis();
+	}
+
+	private void closeChannel() {
+
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
 			}
-		} catch (Exception e) {
+			channel = null;
 		}
+	}
+
+	/**
+	 * Stops the flusher and any reconnect attempt. What wasn't written goes
+	 * ahead of the queue , for the transport that replaces this one.
+	 */
+	@Override
+	public void close() {
 
+		synchronized (lock) {
+			stopped = true;
+			rotating = false;
+		}
+		if (reconnector != null)
+			reconnector.cancel();
+		if (scheduler != null)
+			scheduler.shutdownNow();
+		disconnect();
+		super.close();
 	}
 
 	@Override
@@ -80,51 +474,252 @@ public class SplunkTCPTransport extends SplunkInput implements SplunkTransport,
 
 	@Override
 	public void send(SplunkLogEvent event) {
-		String currentMessage = event.toString();
+
+		message.reset();
+		message.append(event).write('\n');
 		try {
 
-			if (writerOut != null) {
+			synchronized (lock) {
+				if (channel == null) {
+					// not connected , the reconnector is on it
+					enqueue(message.toByteArray());
+					sendFailed();
+					return;
+				}
 
-				// send the message
-				writerOut.write(currentMessage + "\n");
+				// queued events go first so that the order is kept
+				appendQueued();
+				if (queueContainsEvents() || !buffer.append(message))
+					enqueue(message.toByteArray());
+				markPending();
 
-				// flush the queue
-				while (queueContainsEvents()) {
-					String messageOffQueue = dequeue();
-					currentMessage = messageOffQueue;
-					writerOut.write(currentMessage + "\n");
-				}
-				writerOut.flush();
+				// the breaker hears about the write , not the append
+				if (buffer.hasFullSegment() && !rotating)
+					write();
 			}
 
 		} catch (IOException e) {
 
-			logger.error("Error sending message via HEC transport : "
-					+ e.getMessage());
+			failed(e);
+		}
 
-			// something went wrong , put message on the queue for retry
-			enqueue(currentMessage);
-			try {
-				stop();
-			} catch (Exception e1) {
+		scheduleFlush();
+
+	}
+
+	/**
+	 * Move as many queued events into the buffer as fit
+	 */
+	private void appendQueued() {
+
+		byte[] queued;
+		while ((queued = dequeue()) != null) {
+			if (!buffer.append(queued, 0, queued.length)) {
+				requeue(queued);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Runs on the flusher thread once events have lingered
+	 */
+	private void lingerFlush() {
+
+		flushScheduled.set(false);
+		boolean rotate = false;
+		try {
+			synchronized (lock) {
+				if (channel == null)
+					return;
+				appendQueued();
+				markPending();
+				if (!rotating) {
+					write();
+					// only once everything is written , so at an event
+					// boundary
+					rotate = buffer.isEmpty() && rotationDue();
+					rotating = rotate;
+				}
 			}
+		} catch (IOException e) {
+			failed(e);
+		}
+		if (rotate)
+			rotate();
+
+		// the socket is backed up , try again after another linger
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
 
+		boolean waiting;
+		synchronized (lock) {
+			waiting = channel != null
+					&& (!buffer.isEmpty() || queueContainsEvents());
+		}
+		if (waiting && flushScheduled.compareAndSet(false, true)) {
 			try {
-				start();
-			} catch (Exception e2) {
+				scheduler.schedule(flushTask, linger, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// closed , the replacement transport sends what is queued
+				flushScheduled.set(false);
 			}
 		}
+	}
+
+	private void failed(IOException e) {
+
+		logger.error("Error sending message via TCP transport : "
+				+ e.getMessage());
+		sendFailed();
+
+		// something went wrong , what wasn't written goes on the queue for
+		// retry
+		disconnect();
+
+		// off the send path , events are queued in the meantime
+		reconnector.reconnectLater();
+	}
+
+	/**
+	 * @return the hosts list , or host:port if there isn't one
+	 */
+	public String getHosts() {
+		return hosts != null ? hosts : host + ":" + port;
+	}
+
+	/**
+	 * Takes effect on the next (re)start.
+	 * 
+	 * @param hosts
+	 *            comma delimited list of host:port , hosts without a port use
+	 *            the port setting
+	 */
+	public void setHosts(String hosts) {
+		this.hosts = hosts;
+	}
+
+	public long getRotateInterval() {
+		return rotateInterval;
+	}
+
+	/**
+	 * @param rotateInterval
+	 *            secs on one host before moving to the next , 0 for never
+	 */
+	public void setRotateInterval(long rotateInterval) {
+		this.rotateInterval = rotateInterval;
+	}
+
+	public long getRotateVolume() {
+		return rotateVolume;
+	}
+
+	/**
+	 * @param rotateVolume
+	 *            bytes sent to one host before moving to the next , 0 for
+	 *            never
+	 */
+	public void setRotateVolume(long rotateVolume) {
+		this.rotateVolume = rotateVolume;
+	}
+
+	/**
+	 * @param rawProperty
+	 *            in format [<integer>[KB|MB|GB]]
+	 */
+	public void setRotateVolume(String rawProperty) {
 
+		long bytes = parseSize(rawProperty);
+		if (bytes >= 0)
+			setRotateVolume(bytes);
 	}
 
+	public long getReconnectDelay() {
+		return reconnectDelay;
+	}
+
+	/**
+	 * Takes effect when the transport is first started.
+	 * 
+	 * @param reconnectDelay
+	 *            millis before the second reconnect attempt , doubled for
+	 *            every attempt after that
+	 */
+	public void setReconnectDelay(long reconnectDelay) {
+		this.reconnectDelay = reconnectDelay;
+	}
+
+	public long getReconnectMaxDelay() {
+		return reconnectMaxDelay;
+	}
+
+	/**
+	 * Takes effect when the transport is first started.
+	 * 
+	 * @param reconnectMaxDelay
+	 *            max millis between reconnect attempts
+	 */
+	public void setReconnectMaxDelay(long reconnectMaxDelay) {
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+
+	public long getLinger() {
+		return linger;
+	}
+
+	/**
+	 * @param linger
+	 *            millis an event waits for others to be written with it
+	 */
+	public void setLinger(long linger) {
+		this.linger = linger;
+	}
+
+	public long getSendBufferSize() {
+		return sendBufferSize;
+	}
+
+	/**
+	 * Takes effect when the transport is first started.
+	 * 
+	 * @param sendBufferSize
+	 */
+	public void setSendBufferSize(long sendBufferSize) {
+		this.sendBufferSize = sendBufferSize;
+	}
+
+	/**
+	 * Set the send buffer size from the configured property String value. If
+	 * parsing fails , the default of 1MB will be used.
+	 * 
+	 * @param rawProperty
+	 *            in format [<integer>[KB|MB|GB]]
+	 */
+	public void setSendBufferSize(String rawProperty) {
+
+		long bytes = parseSize(rawProperty);
+		if (bytes > 0)
+			setSendBufferSize(bytes);
+	}
+
+	/**
+	 * @return the host currently connected to
+	 */
 	@Override
 	public String getHost() {
-		return this.host;
+
+		InetSocketAddress current = currentTarget;
+		return current != null ? current.getHostString() : this.host;
 	}
 
 	@Override
 	public int getPort() {
-		return this.port;
+
+		InetSocketAddress current = currentTarget;
+		return current != null ? current.getPort() : this.port;
 	}
 
 	@Override
@@ -0,0 +1,295 @@
+package com.splunk.javaagent.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.splunk.javaagent.SplunkLogEvent;
+
+/**
+ * Growable byte buffer that text is encoded into as UTF-8 as it is appended.
+ *
+ * The transports keep one of these per send path and reset it for every
+ * message , so events go from the {@link SplunkLogEvent} pairs straight to the
+ * bytes handed to the socket or HTTP entity without building intermediate
+ * Strings , and the size of a message is known exactly without encoding it
+ * again.
+ *
+ * Not thread safe.
+ *
+ */
+public class Utf8Buffer {
+
+	private static final int DEFAULT_CAPACITY = 4096;
+	// a scratch builder that grew past this is dropped after use
+	private static final int MAX_SCRATCH_CAPACITY = 64 * 1024;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private byte[] bytes;
+	private int size;
+
+	// events are rendered into this before being encoded
+	private StringBuilder scratch = new StringBuilder(512);
+
+	public Utf8Buffer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public Utf8Buffer(int capacity) {
+		this.bytes = new byte[Math.max(capacity, 16)];
+	}
+
+	/**
+	 * Empty the buffer , the backing array is kept for reuse
+	 */
+	public void reset() {
+		size = 0;
+	}
+
+	/**
+	 * Number of bytes written
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The backing array , only the first {@link #size()} bytes are valid
+	 *
+	 * @return
+	 */
+	public byte[] array() {
+		return bytes;
+	}
+
+	/**
+	 * Copy of the valid bytes
+	 *
+	 * @return
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(bytes, size);
+	}
+
+	/**
+	 * Discard everything written after the given size
+	 *
+	 * @param size
+	 */
+	public void truncate(int size) {
+
+		if (size < this.size)
+			this.size = Math.max(size, 0);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, size);
+	}
+
+	private void ensureCapacity(int extra) {
+
+		int required = size + extra;
+		if (required > bytes.length) {
+			int capacity = Math.max(bytes.length << 1, required);
+			bytes = Arrays.copyOf(bytes, capacity);
+		}
+	}
+
+	/**
+	 * Write a single raw byte
+	 *
+	 * @param b
+	 * @return
+	 */
+	public Utf8Buffer write(int b) {
+
+		ensureCapacity(1);
+		bytes[size++] = (byte) b;
+		return this;
+	}
+
+	public Utf8Buffer write(byte[] b) {
+		return write(b, 0, b.length);
+	}
+
+	public Utf8Buffer write(byte[] b, int off, int len) {
+
+		ensureCapacity(len);
+		System.arraycopy(b, off, bytes, size, len);
+		size += len;
+		return this;
+	}
+
+	public Utf8Buffer write(Utf8Buffer other) {
+		return write(other.bytes, 0, other.size);
+	}
+
+	/**
+	 * Encode a rendered event
+	 *
+	 * @param event
+	 * @return
+	 */
+	public Utf8Buffer append(SplunkLogEvent event) {
+
+		scratch.setLength(0);
+		event.writeTo(scratch);
+		append(scratch, 0, scratch.length());
+		if (scratch.capacity() > MAX_SCRATCH_CAPACITY)
+			scratch = new StringBuilder(512);
+		return this;
+	}
+
+	/**
+	 * Encode a rendered event as the contents of a JSON string , ie: escaped
+	 * but without the surrounding quotes
+	 *
+	 * @param event
+	 * @return
+	 */
+	public Utf8Buffer appendJsonEscaped(SplunkLogEvent event) {
+
+		scratch.setLength(0);
+		event.writeTo(scratch);
+		appendJsonEscaped(scratch, 0, scratch.length());
+		if (scratch.capacity() > MAX_SCRATCH_CAPACITY)
+			scratch = new StringBuilder(512);
+		return this;
+	}
+
+	/**
+	 * Write the decimal digits of a number
+	 *
+	 * @param value
+	 * @return
+	 */
+	public Utf8Buffer append(long value) {
+
+		if (value == Long.MIN_VALUE)
+			return append(String.valueOf(value));
+		ensureCapacity(20);
+		if (value < 0) {
+			bytes[size++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10)
+			digits++;
+		int pos = size + digits;
+		size = pos;
+		do {
+			bytes[--pos] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		return this;
+	}
+
+	public Utf8Buffer append(CharSequence chars) {
+
+		if (chars == null)
+			return append("null");
+		return append(chars, 0, chars.length());
+	}
+
+	/**
+	 * Encode a range of characters as UTF-8 , unpaired surrogates are written
+	 * as '?' the same as String.getBytes does
+	 *
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public Utf8Buffer append(CharSequence chars, int start, int end) {
+
+		// worst case is 3 bytes per char , a surrogate pair is 4 bytes for 2
+		ensureCapacity((end - start) * 3);
+		byte[] b = bytes;
+		int pos = size;
+		for (int i = start; i < end; i++) {
+			char c = chars.charAt(i);
+			if (c < 0x80) {
+				b[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				b[pos++] = (byte) (0xc0 | (c >> 6));
+				b[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < end
+						&& Character.isLowSurrogate(chars.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, chars.charAt(++i));
+					b[pos++] = (byte) (0xf0 | (cp >> 18));
+					b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					b[pos++] = (byte) (0x80 | (cp & 0x3f));
+				} else {
+					b[pos++] = '?';
+				}
+			} else {
+				b[pos++] = (byte) (0xe0 | (c >> 12));
+				b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				b[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		size = pos;
+		return this;
+	}
+
+	/**
+	 * Encode a range of characters as the contents of a JSON string , quotes ,
+	 * backslashes and control characters are escaped in the same pass as the
+	 * UTF-8 encoding
+	 *
+	 * @param chars
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public Utf8Buffer appendJsonEscaped(CharSequence chars, int start, int end) {
+
+		int from = start;
+		for (int i = start; i < end; i++) {
+			char c = chars.charAt(i);
+			if (c >= 0x20 && c != '"' && c != '\\')
+				continue;
+			// encode the run of plain characters , then the escape
+			append(chars, from, i);
+			from = i + 1;
+			ensureCapacity(6);
+			bytes[size++] = '\\';
+			switch (c) {
+			case '"':
+				bytes[size++] = '"';
+				break;
+			case '\\':
+				bytes[size++] = '\\';
+				break;
+			case '\n':
+				bytes[size++] = 'n';
+				break;
+			case '\r':
+				bytes[size++] = 'r';
+				break;
+			case '\t':
+				bytes[size++] = 't';
+				break;
+			case '\b':
+				bytes[size++] = 'b';
+				break;
+			case '\f':
+				bytes[size++] = 'f';
+				break;
+			default:
+				bytes[size++] = 'u';
+				bytes[size++] = '0';
+				bytes[size++] = '0';
+				bytes[size++] = (byte) HEX[c >> 4];
+				bytes[size++] = (byte) HEX[c & 0xf];
+			}
+		}
+		return append(chars, from, end);
+	}
+
+}